@@ -0,0 +1,135 @@
+import java.nio.ByteBuffer;
+
+import benchmarks.GameDriver;
+
+/**
+ * Runs the game for the benchmarks. See GameDriver.
+ */
+public class BenchmarkDriver implements GameDriver {
+	private GameLogic game;
+	private int playerID;
+	private ByteBuffer lookBuffer;
+
+	// Each MOVE goes back the way the last one came
+	private boolean north = true;
+
+	private CountingUser user;
+	private Player player;
+
+	@Override
+	public void startGame(String mapFile) throws Exception {
+		this.game = new GameLogic(mapFile);
+		this.playerID = this.game.addPlayer(new NullListener());
+		placePlayer(mapFile, true);
+		this.lookBuffer = ByteBuffer.allocate(GameLogic.lookReplyLength(this.game
+				.getLookDistance(this.playerID)));
+	}
+
+	@Override
+	public void startCommandUser(String mapFile) throws Exception {
+		this.game = new GameLogic(mapFile);
+		this.user = new CountingUser(this.game);
+		this.user.addPlayer();
+		this.playerID = this.user.playerID;
+		placePlayer(mapFile, false);
+	}
+
+	/**
+	 * Stands the player on the first floor cell with the wanted cell to its
+	 * north
+	 * 
+	 * @param walkableNorth
+	 *            true for a cell they can move into, false for a wall
+	 */
+	private void placePlayer(String mapFile, boolean walkableNorth)
+			throws Exception {
+		final Map layout = new Map(mapFile);
+		for (int row = 1; row < layout.getMapHeight(); row++) {
+			for (int col = 0; col < layout.getMapWidth(); col++) {
+				if (layout.isWalkable(col, row)
+						&& (layout.isWalkable(col, row - 1) == walkableNorth)) {
+					this.game.setPlayerPosition(col, row, this.playerID);
+					return;
+				}
+			}
+		}
+		throw new IllegalStateException("nowhere on the map to stand");
+	}
+
+	@Override
+	public String look() {
+		return this.game.clientLook(this.playerID);
+	}
+
+	@Override
+	public ByteBuffer lookIntoBuffer() {
+		this.lookBuffer.clear();
+		this.game.clientLook(this.playerID, this.lookBuffer);
+		return this.lookBuffer;
+	}
+
+	@Override
+	public void move() throws CommandException {
+		this.game.clientMove(this.north
+				? CompassDirection.NORTH
+				: CompassDirection.SOUTH, this.playerID);
+		this.north = !this.north;
+	}
+
+	@Override
+	public void change() {
+		this.game.clientChange();
+	}
+
+	@Override
+	public long processCommand(String line) {
+		this.user.processCommand(line);
+		return this.user.bytesSent;
+	}
+
+	@Override
+	public Object loadMap(String mapFile) throws Exception {
+		return new Map(mapFile);
+	}
+
+	@Override
+	public Object tileFromChar(char ch) {
+		return Tile.fromChar(ch);
+	}
+
+	@Override
+	public void createPlayer(boolean lantern) {
+		this.player = new Player("Benchmark", new Location(0, 0),
+				new NullListener());
+		this.player.giveItem(new Sword());
+		this.player.giveItem(new Armour());
+		if (lantern) {
+			this.player.giveItem(new Lantern());
+		}
+	}
+
+	@Override
+	public int lookDistance() {
+		return this.player.lookDistance();
+	}
+
+	/**
+	 * A user whose output only counts the bytes it would have sent
+	 */
+	private static final class CountingUser extends CommandLineUser {
+		private long bytesSent = 0;
+
+		private CountingUser(GameLogic game) {
+			super(game);
+		}
+
+		@Override
+		public void run() {
+		}
+
+		@Override
+		protected void doOutputBytes(byte[] bytes, boolean isChange) {
+			this.bytesSent += bytes.length;
+		}
+	}
+}
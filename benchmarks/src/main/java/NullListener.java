@@ -0,0 +1,38 @@
+/**
+ * A PlayerListener that ignores everything it is told, so the benchmarks
+ * measure the game and not the output.
+ */
+public class NullListener implements PlayerListener {
+
+	@Override
+	public void sendMessage(String message) {
+	}
+
+	@Override
+	public void sendChange() {
+	}
+
+	@Override
+	public void startTurn() {
+	}
+
+	@Override
+	public void endTurn() {
+	}
+
+	@Override
+	public void win() {
+	}
+
+	@Override
+	public void hpChange(int value) {
+	}
+
+	@Override
+	public void apRemaining(int value) {
+	}
+
+	@Override
+	public void treasureChange(int value) {
+	}
+}
@@ -0,0 +1,103 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * The maps the benchmarks are run on: the default map shipped with the game,
+ * and large generated ones.
+ */
+public final class BenchmarkMaps {
+	// Where the default map is, from the project or the benchmarks directory
+	private static final String[] DEFAULT_MAP_PATHS = {
+			"src/res/maps/defaultMap", "../src/res/maps/defaultMap",
+			"res/maps/defaultMap" };
+
+	private BenchmarkMaps() {
+	}
+
+	/**
+	 * Finds a map by name
+	 * 
+	 * @param name
+	 *            "default" for the game's default map, or the width of a
+	 *            square map to generate, e.g. "1000"
+	 * @return the name of the file holding the map
+	 */
+	public static String file(String name) throws IOException {
+		if (name.equals("default")) {
+			return defaultMap();
+		}
+		return generate(Integer.parseInt(name));
+	}
+
+	/**
+	 * @return the name of the file holding the default map. The system
+	 *         property dod.map overrides where it is looked for.
+	 */
+	public static String defaultMap() throws IOException {
+		final String property = System.getProperty("dod.map");
+		if (property != null) {
+			return property;
+		}
+
+		for (final String path : DEFAULT_MAP_PATHS) {
+			if (new File(path).isFile()) {
+				return path;
+			}
+		}
+		throw new IOException(
+				"cannot find the default map, set -Ddod.map=<file>");
+	}
+
+	/**
+	 * Writes a square map surrounded by walls, with walls, gold, items and
+	 * exits scattered over the floor. The same size always gives the same map.
+	 * 
+	 * @param size
+	 *            the width and height of the map
+	 * @return the name of the file, which is deleted when the JVM exits
+	 */
+	public static String generate(int size) throws IOException {
+		final Random random = new Random(size);
+		final File file = File.createTempFile("benchmark-" + size + "-",
+				".map");
+		file.deleteOnExit();
+
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("name Benchmark " + size);
+			out.println("win 2");
+
+			final StringBuilder row = new StringBuilder(size);
+			for (int r = 0; r < size; r++) {
+				row.setLength(0);
+				for (int c = 0; c < size; c++) {
+					row.append(cell(random, r, c, size));
+				}
+				out.println(row);
+			}
+		}
+		return file.getPath();
+	}
+
+	private static char cell(Random random, int row, int col, int size) {
+		if ((row == 0) || (col == 0) || (row == size - 1)
+				|| (col == size - 1)) {
+			return '#';
+		}
+
+		final int roll = random.nextInt(100);
+		if (roll < 15) {
+			return '#';
+		} else if (roll < 18) {
+			return 'G';
+		} else if (roll == 18) {
+			return "LHSA".charAt(random.nextInt(4));
+		} else if ((roll == 19) && (random.nextInt(10) == 0)) {
+			return 'E';
+		}
+		return '.';
+	}
+}
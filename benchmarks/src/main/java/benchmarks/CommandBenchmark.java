@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A command line as a client sends it, parsed, dispatched and answered by
+ * CommandLineUser. The reply is encoded but not written anywhere.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+	// The player stands below a wall, so MOVE N is parsed, dispatched and
+	// refused without changing the game
+	@Param({ "LOOK", "MOVE N", "HELLO benchmark", "SHOUT hello everyone",
+			"NOSUCHCOMMAND" })
+	public String command;
+
+	private GameDriver driver;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.driver = GameDriver.create();
+		this.driver.startCommandUser(BenchmarkMaps.defaultMap());
+	}
+
+	@Benchmark
+	public long processCommand() {
+		return this.driver.processCommand(this.command);
+	}
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of the game the benchmarks measure.
+ * 
+ * The game's classes are in the default package, which classes in a package
+ * cannot refer to, and JMH will not run benchmarks from the default package.
+ * So the benchmarks work through this interface, and BenchmarkDriver in the
+ * default package implements it. Each benchmark creates its own driver with
+ * create(), outside the measured code.
+ */
+public interface GameDriver {
+
+	/**
+	 * @return a new driver, with no game started
+	 */
+	public static GameDriver create() {
+		try {
+			return Class.forName("BenchmarkDriver")
+					.asSubclass(GameDriver.class).getDeclaredConstructor()
+					.newInstance();
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException(
+					"the game's BenchmarkDriver is not on the class path", e);
+		}
+	}
+
+	/**
+	 * Starts a game with one player, standing below a cell they can move into
+	 * 
+	 * @param mapFile
+	 *            the map to play on
+	 */
+	public void startGame(String mapFile) throws Exception;
+
+	/**
+	 * Starts a game with one command line user, standing below a wall
+	 * 
+	 * @param mapFile
+	 *            the map to play on
+	 */
+	public void startCommandUser(String mapFile) throws Exception;
+
+	/**
+	 * @return the player's LOOK, as GameLogic.clientLook returns it
+	 */
+	public String look();
+
+	/**
+	 * @return the player's LOOK, rendered into a reused buffer
+	 */
+	public ByteBuffer lookIntoBuffer();
+
+	/**
+	 * Moves the player one cell, back the way they last came
+	 */
+	public void move() throws Exception;
+
+	/**
+	 * Sends the CHANGE for the tiles changed since the last one, which also
+	 * forgets them
+	 */
+	public void change();
+
+	/**
+	 * Sends a line to the command line user, as if it came from a client
+	 * 
+	 * @return the number of bytes the user has been sent so far
+	 */
+	public long processCommand(String line);
+
+	/**
+	 * @return the map loaded from the file
+	 */
+	public Object loadMap(String mapFile) throws Exception;
+
+	/**
+	 * @return the tile for a map character
+	 */
+	public Object tileFromChar(char ch);
+
+	/**
+	 * Creates a player off the map, carrying a sword and armour
+	 * 
+	 * @param lantern
+	 *            whether they carry a lantern too
+	 */
+	public void createPlayer(boolean lantern);
+
+	/**
+	 * @return how far the player from createPlayer can see
+	 */
+	public int lookDistance();
+}
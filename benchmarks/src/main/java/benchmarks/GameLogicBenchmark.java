@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The commands every player sends every turn, LOOK and MOVE, run straight on
+ * a GameLogic with one player.
+ *
+ * Each MOVE is followed by its CHANGE, as in a real game, so the tiles it
+ * changes are not left to pile up from one invocation to the next.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameLogicBenchmark {
+	@Param({ "default", "1000" })
+	public String map;
+
+	private GameDriver driver;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.driver = GameDriver.create();
+		this.driver.startGame(BenchmarkMaps.file(this.map));
+	}
+
+	@Benchmark
+	public String clientLook() {
+		return this.driver.look();
+	}
+
+	@Benchmark
+	public ByteBuffer clientLookIntoBuffer() {
+		return this.driver.lookIntoBuffer();
+	}
+
+	@Benchmark
+	public void clientMove() throws Exception {
+		this.driver.move();
+		this.driver.change();
+	}
+}
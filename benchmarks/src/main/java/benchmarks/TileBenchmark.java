@@ -0,0 +1,44 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Turning map characters into tiles, which is done for every cell of a map
+ * as it is loaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileBenchmark {
+	// Every kind of cell, in rough proportion to a real map
+	private static final char[] CELLS = "#.....##..EGLHSA".toCharArray();
+
+	private GameDriver driver;
+
+	@Setup
+	public void setUp() {
+		this.driver = GameDriver.create();
+	}
+
+	@Benchmark
+	public void fromChar(Blackhole blackhole) {
+		for (final char cell : CELLS) {
+			blackhole.consume(this.driver.tileFromChar(cell));
+		}
+	}
+}
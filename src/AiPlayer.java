@@ -0,0 +1,265 @@
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A computer player that plays inside the game, calling GameLogic directly
+ * rather than sending commands over a socket like the Bot.
+ *
+ * Nothing is parsed or sent, and the player never searches the map itself: it
+ * walks down the game's shared distance fields to the nearest gold, picks it
+ * up, and once it has enough heads for the nearest exit. A player that can
+ * never win, because there is not enough gold left or no way to it, leaves the
+ * game rather than passing its turns forever.
+ *
+ * The game starts a player's turn in the middle of somebody else's command,
+ * so the player does not act there and then. Each action is run as its own
+ * task on the executor, which must be the thread that owns the game, e.g. the
+ * game's GameEventLoop, and must not run tasks on the thread that submits
+ * them.
+ */
+public class AiPlayer implements PlayerListener {
+	private static final CompassDirection[] DIRECTIONS = CompassDirection
+			.values();
+
+	private final GameLogic game;
+	private final Executor executor;
+	private final Random random;
+
+	private int playerID = -1;
+	private int gold = 0;
+	private int turns = 0;
+	private boolean won = false;
+
+	private volatile boolean myTurn = false;
+	private volatile boolean finished = false;
+	private final AtomicBoolean actionScheduled = new AtomicBoolean(false);
+
+	/**
+	 * @param game
+	 *            the game to play
+	 * @param executor
+	 *            runs the player's actions on the thread that owns the game
+	 */
+	public AiPlayer(GameLogic game, Executor executor) {
+		this(game, executor, new Random());
+	}
+
+	/**
+	 * @param random
+	 *            picks the way round a player that is in the way, so a seeded
+	 *            generator gives the same game every time
+	 */
+	public AiPlayer(GameLogic game, Executor executor, Random random) {
+		this.game = game;
+		this.executor = executor;
+		this.random = random;
+	}
+
+	/**
+	 * Adds the player to the game. This must be called on the thread that
+	 * owns the game.
+	 */
+	public void join() {
+		if (this.playerID != -1) {
+			throw new IllegalStateException("AI player already added");
+		}
+		this.playerID = this.game.addPlayer(this);
+	}
+
+	/**
+	 * Takes the player out of the game, if it is still playing. This must be
+	 * called on the thread that owns the game.
+	 */
+	public void leave() {
+		if ((this.playerID == -1) || this.finished) {
+			return;
+		}
+		this.finished = true;
+		this.myTurn = false;
+		this.game.removePlayer(this.playerID);
+	}
+
+	/**
+	 * @return the ID of the player in the game, or -1 if it has not joined
+	 */
+	public int getPlayerID() {
+		return this.playerID;
+	}
+
+	/**
+	 * @return the gold the player is carrying
+	 */
+	public int getGold() {
+		return this.gold;
+	}
+
+	/**
+	 * @return the number of turns the player has been given
+	 */
+	public int getTurns() {
+		return this.turns;
+	}
+
+	/**
+	 * @return true if the player has won the game
+	 */
+	public boolean hasWon() {
+		return this.won;
+	}
+
+	/**
+	 * @return true once the player has won, left, or found the game over
+	 */
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	@Override
+	public void sendMessage(String message) {
+		// Nobody reads an AI player's messages
+	}
+
+	@Override
+	public void sendChange() {
+		// The player reads the map directly, so there is nothing to LOOK at
+	}
+
+	@Override
+	public void startTurn() {
+		this.turns++;
+		this.myTurn = true;
+		scheduleAction();
+	}
+
+	@Override
+	public void endTurn() {
+		this.myTurn = false;
+	}
+
+	@Override
+	public void win() {
+		this.won = true;
+		this.finished = true;
+		this.myTurn = false;
+	}
+
+	@Override
+	public void hpChange(int value) {
+		// Nothing can hurt a player yet
+	}
+
+	@Override
+	public void apRemaining(int value) {
+		// The game ends the turn once the AP has run out
+	}
+
+	@Override
+	public void treasureChange(int value) {
+		this.gold += value;
+	}
+
+	private void scheduleAction() {
+		if (this.actionScheduled.compareAndSet(false, true)) {
+			this.executor.execute(this::act);
+		}
+	}
+
+	/**
+	 * Takes one action, then queues the next if it is still the player's
+	 * turn, so other work for the game is run in between
+	 */
+	private void act() {
+		this.actionScheduled.set(false);
+		if (!this.myTurn || this.finished) {
+			return;
+		}
+
+		if (this.game.hasWinner()) {
+			// Somebody else has won
+			this.finished = true;
+			this.myTurn = false;
+			return;
+		}
+
+		try {
+			takeAction();
+		} catch (final CommandException e) {
+			// The game would not let the player act, so it can only wait
+			passTurn();
+		}
+
+		if (this.myTurn && !this.finished) {
+			scheduleAction();
+		} else {
+			// Show the others where the player went, once per turn rather
+			// than once per step
+			this.game.clientChange();
+		}
+	}
+
+	private void takeAction() throws CommandException {
+		final Navigation navigation = this.game.getNavigation();
+		final Location location = this.game.getPlayerLocation(this.playerID);
+		final boolean enoughGold = this.gold >= this.game.getGoal();
+
+		if (!enoughGold && (navigation.toGold().distance(location) == 0)) {
+			this.game.clientPickup(this.playerID);
+			return;
+		}
+
+		final DistanceField field = enoughGold
+				? navigation.toExit()
+				: navigation.toGold();
+		final CompassDirection step = field.nextStep(location);
+		if (step == null) {
+			// There is nothing left on the map that could make this player win
+			leave();
+			return;
+		}
+
+		if (tryMove(step)) {
+			return;
+		}
+
+		// Somebody is in the way. Waiting out the turn, after stepping aside
+		// half the time, lets them past, where heading straight back could
+		// leave players swapping places forever.
+		if (this.random.nextBoolean()) {
+			tryMoveAnywhere();
+		}
+		passTurn();
+	}
+
+	/**
+	 * Ends the turn, unless a move has already used the last AP and passed
+	 * it on
+	 */
+	private void passTurn() {
+		if (this.myTurn) {
+			this.game.clientEndTurn(this.playerID);
+		}
+	}
+
+	/**
+	 * Steps aside, trying the directions from a random one onwards
+	 */
+	private boolean tryMoveAnywhere() {
+		final int first = this.random.nextInt(DIRECTIONS.length);
+		for (int i = 0; i < DIRECTIONS.length; i++) {
+			if (tryMove(DIRECTIONS[(first + i) % DIRECTIONS.length])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean tryMove(CompassDirection direction) {
+		try {
+			this.game.clientMove(direction, this.playerID);
+			return true;
+		} catch (final CommandException e) {
+			return false;
+		}
+	}
+}
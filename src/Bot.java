@@ -1,12 +1,17 @@
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 /**
  * Only changed this class slightly to work with coursework 3. Added a main method.
  *
- * This class plays the game using my my AI from coursework on, if it cannot
- * path find it will then default to using the provided random bot move.
+ * This class plays the game by remembering everything it has seen in an
+ * ExploredMap, and taking the shortest known path to the nearest gold, or to the
+ * exit once it has enough. While it cannot see what it needs it walks to the
+ * nearest edge of what it has seen, so it explores instead of wandering. Only
+ * once the whole reachable map has been seen does it fall back on the provided
+ * random bot move.
  *
- * Note that there is a (very slim) chance that it will go on forever because
- * of the random move method.
+ * The map does not say where the bot is, so its position is counted from where
+ * it started, one step for every MOVE that succeeds.
  *
  * The bot extends client just as the humanUser does, and interacts in the same way
  * a human user would.
@@ -14,21 +19,17 @@ import java.util.Random;
  * @Author Daniel Jenkyn
  */
 public class Bot extends Client {
-	private int[][] botPathMap;
+	//The bot's own copy of the last look, which the reader thread cannot change
+	private char[][] look;
 	private boolean hasLantern = false;
 	private boolean hasSword = false;
 	private boolean hasArmour = false;
 
-	//Pathfinding variables from my original AI
-	private boolean prevMoveNorth;
-	private boolean prevMoveSouth;
-	private boolean prevMoveEast;
-	private boolean prevMoveWest;
-
-	private int pathFindNorth;
-	private int pathFindEast;
-	private int pathFindSouth;
-	private int pathFindWest;
+	//Everything seen so far, and where the bot is on it
+	private final ExploredMap explored = new ExploredMap();
+	private int col = 0;
+	private int row = 0;
+	private int goldCarried = 0;
 	/**
 	 * Constructs a new instance of the Bot.
 	 *
@@ -37,184 +38,94 @@ public class Bot extends Client {
 	 *            the parent class, as the Bot sends text commands to it.
 	 */
 	public Bot(String host, int port) {
+		this(host, port, false);
+	}
+	/**
+	 * Constructs a new instance of the Bot, optionally talking to the server
+	 * in the binary protocol.
+	 */
+	public Bot(String host, int port, boolean binaryProtocol) {
 		super(host, port);
 
-		this.prevMoveNorth = false;
-		this.prevMoveSouth = false;
-		this.prevMoveEast = false;
-		this.prevMoveWest = false;
-
-		this.pathFindNorth = pathFindNorth;
-		this.pathFindEast = pathFindEast;
-		this.pathFindSouth = pathFindSouth;
-		this.pathFindWest = pathFindWest;
-
+		if(binaryProtocol) {
+			callBinaryProtocol();
+		}
 		//Bots name
 		callHello("GLaDOS");
+		//Only the changed cells of each look are needed
+		callLookMode("DELTA");
+		//Each step waits for the server's answer, and no longer
 		while(isGameRunning) {
-			lookAtMap();
-			initializeBotPathMap();
-			valueBotPathMap();
+			turnStarted().join();
+			if(!isGameRunning || !lookAtMap()) {
+				continue;
+			}
+			explored.merge(look, col, row);
+			pickupIfAvailable();
 			pathFind();
 		}
 		callQuit();
 	}
 	/**
-	 * Issues a LOOK to update what the bot can see. Returns when it is updated.
+	 * Issues a LOOK to update what the bot can see. Returns as soon as the answer
+	 * has been read.
+	 *
+	 * @return false if there is nothing to look at yet, e.g. the LOOK failed
 	 **/
-	private void lookAtMap() {
-		callLook();
-		try {
-			Thread.sleep(1000);
-		} catch (final InterruptedException e) {
-
-		}
-		while (currentLookReply == null){
-			try {
-				Thread.sleep(200);
-			} catch (final InterruptedException e) {
-
-			}
+	private boolean lookAtMap() {
+		if(!answer(callLook())) {
+			return false;
 		}
+		look = copyLookReply();
+		return look != null;
 	}
 	/**
-	 * Assigns integer values to objects on the map so the bot
-	 * can use them for path finding. Lower values are where the bot will seek
-	 * to path find to. Objects of high value are avoided
+	 * Waits for the answer to a command.
+	 *
+	 * @return true if it succeeded
 	 */
-	public void initializeBotPathMap() {
-
-		int height = currentLookReply.length;
-		int width = currentLookReply[0].length;
-		int pheight = (currentLookReply.length-1)/2;
-		int pwidth = (currentLookReply[0].length-1)/2;
-
-		botPathMap = new int[height][width];
-		for(int i = 0; i < height; i++) {
-			for(int j = 0; j < width; j++) {
-				if(currentLookReply[i][j] == 'E' && playerGold >= goldRequired) {
-					botPathMap[i][j] = 0;
-				}else if(currentLookReply[i][j] == 'G' ) {
-					botPathMap[i][j] = 0;
-				}else if(currentLookReply[i][j] == 'L' && this.hasLantern == false && playerGold >= goldRequired) {
-					botPathMap[i][j] = 0;
-				}else if (currentLookReply[i][j] == 'S' && this.hasSword == false && playerGold >= goldRequired) {
-					botPathMap[i][j] = 0;
-				}else if (currentLookReply[i][j] == 'A' && this.hasArmour == false && playerGold >= goldRequired) {
-					botPathMap[i][j] = 0;
-				}else if (currentLookReply[i][j] == 'H' && playerGold == goldRequired) {
-					botPathMap[i][j] = 0;
-				}else if(currentLookReply[i][j]  == '#' || currentLookReply[i][j] == 'X' || currentLookReply[i][j] == 'P') {
-					botPathMap[i][j] = 88;
-				}else {
-					botPathMap[i][j] = 46;
-				}
-			}
+	private boolean answer(CompletableFuture<String> reply) {
+		String answer = reply.join();
+		if(answer.equals("FAIL the game is over")) {
+			//Somebody else won, and the server does not say so
+			isGameRunning = false;
 		}
-		//Uses centre point of look to pick up
-		if(botPathMap[(botPathMap.length-1)/2][(botPathMap.length-1)/2] == 0) {
-			pickupIfAvailable();
-		}
-	}
-	/**
-	 * Iterates a path out from the bot and creates a path of integers to follow.
-	 * The Bounds checking is messy but I could not re-factor it in any way without
-	 * the bot breaking, the only way I can think of that would require a fairly large redesign
-	 * is by using recursion. I'd rather my code be readable and long rather than broken/unfinished.
-	 */
-	public void valueBotPathMap() {
-		int destination = 0;
-		int distance = 1;
-		int pathCounter = 0;
-		int maxCounterValue = 45;
-		int path = 46;
-		//Maximum number of iterations that can occur
-		while(pathCounter < maxCounterValue) {
-			for(int y = 0; y < botPathMap.length; y++) {
-				for (int x = 0; x < botPathMap[0].length; x++) {
-					if(botPathMap[y][x] == destination) {
-						//Bounds checking on Bot look
-						if(y > 0 && x < 4 && x > 0) {
-							if(botPathMap[y-1][x] == path) {
-								botPathMap[y-1][x] = distance;
-							}
-							if(botPathMap[y][x+1] == path) {
-								botPathMap[y][x+1] = distance;
-							}
-							if(botPathMap[y][x-1] == path) {
-								botPathMap[y][x-1] = distance;
-							}
-						}
-						if(y < 4 && x < 4 && x > 0) {
-							if(botPathMap[y+1][x] == path) {
-								botPathMap[y+1][x] = distance;
-							}
-							if(botPathMap[y][x+1] == path) {
-								botPathMap[y][x+1] = distance;
-							}
-							if(botPathMap[y][x-1] == path) {
-								botPathMap[y][x-1] = distance;
-							}
-						}
-						if(y < 4 && y > 0 && x > 0) {
-							if(botPathMap[y+1][x] == path) {
-								botPathMap[y+1][x] = distance;
-							}
-							if(botPathMap[y-1][x] == path) {
-								botPathMap[y-1][x] = distance;
-							}
-							if(botPathMap[y][x-1] == path) {
-								botPathMap[y][x-1] = distance;
-							}
-						}
-						if(y < 4 && y > 0 && x < 4) {
-							if(botPathMap[y+1][x] == path) {
-								botPathMap[y+1][x] = distance;
-							}
-							if(botPathMap[y-1][x] == path) {
-								botPathMap[y-1][x] = distance;
-							}
-							if(botPathMap[y][x+1] == path) {
-								botPathMap[y][x+1] = distance;
-							}
-						}
-					}
-				}//end of inner for
-			}//end of outer for
-			//These increase within the while loop
-			pathCounter++;
-			destination++;
-			distance++;
-		}//End of while
+		return succeeded(answer);
 	}
 	/**
-	 * Moves the bot in accordance to the lowest valued path, the lowest valued path
-	 * is shortest path within look to the gold/exit.
+	 * Moves the bot one step along the shortest path it knows to what it wants:
+	 * gold until it has enough, and a lantern if it has none, then the exit.
+	 * If it has not seen any, it heads for the nearest cell it has not seen.
 	 */
 	public void pathFind() {
-		pathFindNorth = botPathMap[((botPathMap.length-1)/2)-1][(botPathMap.length-1)/2];
-		pathFindEast = botPathMap[(botPathMap.length-1)/2][((botPathMap.length-1)/2)+1];
-		pathFindSouth = botPathMap[((botPathMap.length-1)/2)+1][(botPathMap.length-1)/2];
-		pathFindWest = botPathMap[(botPathMap.length-1)/2][((botPathMap.length-1)/2)-1];
-		//Finds lowest value path
-		int lowestValue = Math.min(Math.min(pathFindNorth,pathFindEast),Math.min(pathFindSouth,pathFindWest));
+		String targets;
+		if(goldCarried >= goldRequired) {
+			targets = "E";
+		} else {
+			targets = hasLantern ? "G" : "GL";
+		}
 
-		//If there is a way to destination...
-		if(lowestValue != 46) {
-			if(pathFindNorth == lowestValue) {
-				callMove("N");
-			} else if(pathFindEast == lowestValue){
-				callMove("E");
-			} else if(pathFindSouth == lowestValue){
-				callMove("S");
-			} else if(pathFindWest == lowestValue){
-				callMove("W");
-			}
+		CompassDirection direction = explored.firstStepTowards(col, row, targets);
+		if(direction == null) {
+			direction = explored.firstStepTowardsFrontier(col, row);
+		}
+
+		if(direction != null) {
+			step(direction);
 		} else {
 			//Last resort of random move is called
 			makeRandomMove();
 		}
 	}
+	/**
+	 * Moves one step, and keeps track of where the bot is if it worked.
+	 */
+	private void step(CompassDirection direction) {
+		if(answer(callMove(direction.toString()))) {
+			col += direction.colOffset();
+			row += direction.rowOffset();
+		}
+	}
 	/**
 	 * Makes a random move, not into a wall
 	 */
@@ -222,9 +133,8 @@ public class Bot extends Client {
 		try {
 			final char dir = generateRandomMove();
 			final String moveString = "MOVE " + dir;
-			String direction = "" + dir;
 			System.out.println(moveString);
-			callMove(direction);
+			step(CompassDirection.fromChar(dir));
 
 		}catch (final IllegalStateException e) {
 			System.err.println(e.getMessage());
@@ -285,38 +195,46 @@ public class Bot extends Client {
 			// We can't pick these up if we already have them, so don't even try
 			case 'A' :
 				if (!this.hasArmour) {
-					callPickup();
-					// We assume that this will be successful, but we could
-					// check
-					// the reply from the game.
-					this.hasArmour = true;
+					this.hasArmour = pickup();
 				}
 				break;
 			case 'L' :
 				if (!this.hasLantern) {
-					callPickup();
-					this.hasLantern = true;
+					this.hasLantern = pickup();
 				}
 				break;
 			case 'S' :
-				if (!this.hasSword) {
-					callPickup();
+				if (!this.hasSword && pickup()) {
 					this.hasSword = true;
 					System.out.println("SHOUT I am a killer robot now");
 				}
 				break;
 			// We'll always get some gold or health
 			case 'G' :
-				callPickup();
-				System.out.println("SHOUT I got some gold");
+				if (pickup()) {
+					this.goldCarried++;
+					System.out.println("SHOUT I got some gold");
+				}
 				break;
 			case 'H' :
-				callPickup();
+				pickup();
 				break;
 			default :
 				break;
 		}
 	}
+	/**
+	 * Picks up what the bot is standing on, and forgets it was there.
+	 *
+	 * @return true if it was picked up
+	 */
+	private boolean pickup() {
+		if(!answer(callPickup())) {
+			return false;
+		}
+		explored.set(col, row, '.');
+		return true;
+	}
 	/**
 	 * Obtains the square in the centre of the LOOKREPLY, i.e. that over which
 	 * the bot is standing
@@ -333,10 +251,10 @@ public class Bot extends Client {
 	 * @return the square corresponding to the bot and offset
 	 */
 	private char getSquareWithOffset(int xOffset, int yOffset) {
-		final int lookReplySize = currentLookReply.length;
+		final int lookReplySize = look.length;
 		final int lookReplyCentreIndex = lookReplySize / 2; // We rely on
 		// truncation
-		return currentLookReply[lookReplyCentreIndex + yOffset][lookReplyCentreIndex + xOffset];
+		return look[lookReplyCentreIndex + yOffset][lookReplyCentreIndex + xOffset];
 	}
 	/**
 	 * Check if the there is a possible move from the centre of the vision field
@@ -355,6 +273,7 @@ public class Bot extends Client {
 	}
 
 	public static void main(String[] args) {
-		Bot bot = new Bot(args[0], Integer.parseInt(args[1]));
+		boolean binaryProtocol = args.length > 2 && args[2].equals("-binary");
+		Bot bot = new Bot(args[0], Integer.parseInt(args[1]), binaryProtocol);
 	}
 }
@@ -0,0 +1,46 @@
+import java.util.function.Function;
+
+/**
+ * A message the game sends to many players at once, e.g. a shout.
+ *
+ * The same Broadcast is handed to every listener, so a listener that has to
+ * encode the message, e.g. to send it over the network, can do so once and
+ * keep the result here for the rest. Listeners that do not care can just use
+ * the text.
+ */
+public final class Broadcast {
+	private final String text;
+
+	// Whatever the first listener to ask encoded the text into
+	private volatile Object encoded = null;
+
+	public Broadcast(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * @return the message as the game sent it
+	 */
+	public String getText() {
+		return this.text;
+	}
+
+	/**
+	 * Returns the message encoded by the given function, encoding it only the
+	 * first time. Every listener asking must use the same function; if two
+	 * threads ask at once both may encode it, and either result is kept.
+	 *
+	 * @param encoder
+	 *            turns the text into the listener's encoding
+	 * @return the encoded message
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T encoded(Function<String, T> encoder) {
+		Object result = this.encoded;
+		if (result == null) {
+			result = encoder.apply(this.text);
+			this.encoded = result;
+		}
+		return (T) result;
+	}
+}
@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Map storage for binary maps too large to keep in memory.
+ *
+ * The map is divided into square regions. A region is read from the binary map
+ * file the first time one of its cells is needed, e.g. by a LOOK or a move, and
+ * is kept in a least recently used cache. When the cache is full the region
+ * that has gone longest without being touched is dropped and will be read
+ * again if anybody goes back there.
+ *
+ * Picked up items are remembered separately, so that they stay gone when their
+ * region is read back in. The file itself is never written.
+ */
+public class ChunkedCells implements MapCells {
+	// The width and height of a region, in cells
+	public static final int REGION_SIZE = 64;
+
+	// The number of regions kept in memory by default, 16MB of cells
+	public static final int DEFAULT_CACHED_REGIONS = 4096;
+
+	// The bytes read at a time when counting the cells of the whole file
+	private static final int COUNT_BLOCK_SIZE = 1 << 16;
+
+	private final String filename;
+	private final long cellsOffset;
+	private final int width;
+	private final int height;
+	private final int regionsAcross;
+
+	// Regions in least recently used order
+	private final LinkedHashMap<Integer, PackedCells> regions;
+
+	// The map index of every cell whose item has been picked up
+	private final Set<Long> removedItems = new HashSet<Long>();
+
+	// Regions are shared by everything reading the map
+	private final ReentrantLock lock = new ReentrantLock();
+
+	public ChunkedCells(String filename, long cellsOffset, int width,
+			int height) {
+		this(filename, cellsOffset, width, height, DEFAULT_CACHED_REGIONS);
+	}
+
+	/**
+	 * @param filename
+	 *            the binary map file
+	 * @param cellsOffset
+	 *            where the packed cells start in the file
+	 * @param cachedRegions
+	 *            the most regions to keep in memory at once
+	 */
+	public ChunkedCells(String filename, long cellsOffset, int width,
+			int height, final int cachedRegions) {
+		this.filename = filename;
+		this.cellsOffset = cellsOffset;
+		this.width = width;
+		this.height = height;
+		this.regionsAcross = (width + REGION_SIZE - 1) / REGION_SIZE;
+
+		this.regions = new LinkedHashMap<Integer, PackedCells>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					java.util.Map.Entry<Integer, PackedCells> eldest) {
+				return size() > cachedRegions;
+			}
+		};
+	}
+
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	@Override
+	public Tile getTile(int col, int row) {
+		return region(col, row).getTile(col % REGION_SIZE, row % REGION_SIZE);
+	}
+
+	/**
+	 * Removes the item from the cell's region, and remembers the pickup so
+	 * the item doesn't come back if the region is dropped and read again.
+	 */
+	@Override
+	public void removeItem(int col, int row) {
+		this.lock.lock();
+		try {
+			region(col, row).removeItem(col % REGION_SIZE, row % REGION_SIZE);
+			this.removedItems.add(cellIndex(col, row));
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public char toChar(int col, int row) {
+		return region(col, row).toChar(col % REGION_SIZE, row % REGION_SIZE);
+	}
+
+	@Override
+	public boolean isWalkable(int col, int row) {
+		return region(col, row).isWalkable(col % REGION_SIZE,
+				row % REGION_SIZE);
+	}
+
+	/**
+	 * @return the number of regions currently in memory
+	 */
+	public int cachedRegionCount() {
+		this.lock.lock();
+		try {
+			return this.regions.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts the cells of the given kinds in the file, reading it straight
+	 * through a block at a time rather than through the cache, so nothing is
+	 * kept and no region in use is pushed out. Items that have been picked up
+	 * are still counted, as the file never changes.
+	 *
+	 * @param characters
+	 *            the characters of the cells to count, e.g. the item characters
+	 * @return how many cells there are of each, in the same order
+	 */
+	public int[] countCells(String characters) {
+		// Which of the characters each packed cell is, or -1
+		final int[] kinds = new int[256];
+		Arrays.fill(kinds, -1);
+		for (int kind = 0; kind < characters.length(); kind++) {
+			kinds[PackedCells.encode(characters.charAt(kind)) & 0xFF] = kind;
+		}
+
+		final int[] counts = new int[characters.length()];
+		final ByteBuffer block = ByteBuffer.allocate(COUNT_BLOCK_SIZE);
+		final long end = this.cellsOffset + cellIndex(0, this.height);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(this.filename),
+				StandardOpenOption.READ)) {
+			long position = this.cellsOffset;
+			while (position < end) {
+				block.clear();
+				block.limit((int) Math.min(block.capacity(), end - position));
+				final int read = channel.read(block, position);
+				if (read < 0) {
+					throw new IOException("binary map is truncated");
+				}
+				position += read;
+
+				block.flip();
+				while (block.hasRemaining()) {
+					final int kind = kinds[block.get() & 0xFF];
+					if (kind != -1) {
+						counts[kind]++;
+					}
+				}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException("could not count the map's cells", e);
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Finds the region holding a cell, reading it from the file if it is not
+	 * in memory.
+	 */
+	private PackedCells region(int col, int row) {
+		final int regionCol = col / REGION_SIZE;
+		final int regionRow = row / REGION_SIZE;
+		final Integer key = (regionRow * this.regionsAcross) + regionCol;
+
+		this.lock.lock();
+		try {
+			PackedCells region = this.regions.get(key);
+			if (region == null) {
+				region = readRegion(regionCol, regionRow);
+				this.regions.put(key, region);
+			}
+			return region;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads a region from the file one row at a time, then takes out any
+	 * items that have already been picked up.
+	 */
+	private PackedCells readRegion(int regionCol, int regionRow) {
+		final int firstCol = regionCol * REGION_SIZE;
+		final int firstRow = regionRow * REGION_SIZE;
+		final int cols = Math.min(REGION_SIZE, this.width - firstCol);
+		final int rows = Math.min(REGION_SIZE, this.height - firstRow);
+		final ByteBuffer cells = ByteBuffer.allocate(REGION_SIZE * REGION_SIZE);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(this.filename),
+				StandardOpenOption.READ)) {
+			for (int row = 0; row < rows; row++) {
+				cells.limit((row * REGION_SIZE) + cols);
+				cells.position(row * REGION_SIZE);
+
+				long position = this.cellsOffset
+						+ cellIndex(firstCol, firstRow + row);
+				while (cells.hasRemaining()) {
+					final int read = channel.read(cells, position);
+					if (read < 0) {
+						throw new IOException("binary map is truncated");
+					}
+					position += read;
+				}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException("could not read map region", e);
+		}
+		cells.clear();
+
+		final PackedCells region = new PackedCells(REGION_SIZE, REGION_SIZE,
+				cells);
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				if (this.removedItems.contains(cellIndex(firstCol + col,
+						firstRow + row))) {
+					region.removeItem(col, row);
+				}
+			}
+		}
+
+		return region;
+	}
+
+	private long cellIndex(int col, int row) {
+		return ((long) row * this.width) + col;
+	}
+}
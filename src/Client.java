@@ -1,5 +1,8 @@
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 /**
  * Class has been updated to work with GUI.
  *
@@ -14,18 +17,34 @@ import java.net.*;
 public class Client implements Runnable {
 
 	private GUI gui;
-	private BufferedReader inputStream;
+	private DataInputStream inputStream;
+	private OutputStream rawOutputStream;
 	private PrintWriter outputStream;
 
+	//Set by callBinaryProtocol. Commands are then sent as binary frames, and
+	//replies are read as frames once the server has answered.
+	private boolean binaryOutput = false;
+	private boolean binaryInput = false;
+
 	private Socket ddSocket;
 	
 	protected static String hostname;
 	protected static int portNumber;
 	
+	//Replaced whole by the reader thread, or changed in place by a LOOKDELTA,
+	//always while holding this client's lock. See copyLookReply.
 	protected char[][] currentLookReply;
-	protected int playerGold = 1;
-	protected int goldRequired;
-	protected boolean isGameRunning = true;
+	protected volatile int playerGold = 1;
+	protected volatile int goldRequired;
+	protected volatile boolean isGameRunning = true;
+
+	//The commands waiting for their answer, oldest first. The server answers
+	//commands in the order they were sent, so each answer completes the head.
+	//Commands that are never answered, e.g. CHANGE, are not queued.
+	private final Queue<CompletableFuture<String>> pendingReplies = new ArrayDeque<CompletableFuture<String>>();
+
+	//Completed while it is this player's turn, replaced when the turn ends
+	private CompletableFuture<Void> turnStarted = new CompletableFuture<Void>();
 
 	//Html formatting
 	private static String htmlBreak = "<br>";
@@ -69,8 +88,7 @@ public class Client implements Runnable {
 
 		try {
 			ddSocket = new Socket(hostname, portNumber);
-			outputStream = new PrintWriter(ddSocket.getOutputStream(), true);
-			inputStream = new BufferedReader(new InputStreamReader(ddSocket.getInputStream()));
+			openStreams(ddSocket);
 		}catch(UnknownHostException e) {
 			System.err.println(hostname + " Doesn't appear to exist. Try checking the hostname");
 			System.exit(1);
@@ -89,12 +107,20 @@ public class Client implements Runnable {
 	 */
 	public void connectToServer() throws IOException {
 		ddSocket = new Socket(hostname, portNumber);
-		outputStream = new PrintWriter(ddSocket.getOutputStream(), true);
-		inputStream = new BufferedReader(new InputStreamReader(ddSocket.getInputStream()));
+		openStreams(ddSocket);
 
 		Thread myThread = new Thread(this);
 		myThread.start();
 	}
+	/**
+	 * Sets up the streams. Input is read as bytes rather than through a Reader, so that
+	 * it can switch to binary frames part way through.
+	 */
+	private void openStreams(Socket socket) throws IOException {
+		rawOutputStream = socket.getOutputStream();
+		outputStream = new PrintWriter(rawOutputStream, true);
+		inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	}
 	/**
 	* Thread loop
 	*
@@ -102,49 +128,17 @@ public class Client implements Runnable {
 	* and its reading from the server.
 	*/
 	public void run() {
-		String input;
 		boolean running = true;
 		while(running) {
 			try {
-				input = inputStream.readLine();
-				String[] args = input.split(" ", 2);
-				switch (args[0]) {
-					case "MESSAGE" : getMessage(args[1]);
-						break;
-					case "ENDTURN" : getEndTurn();
-						break;
-					case "HELLO" : getHello(args[1]);
-						break;
-					case "GOLD" : getGold(args[1]);
-						break;
-					case "WIN" : getWin();
-						isGameRunning = false;
-						break;
-					case "LOSE" : getLose();
-						break;
-					case "STARTTURN" : getStartTurn();
-						break;
-					case "HITMOD" : getHitMod(args[1]);
-						break;
-					case "TREASUREMOD" : getTreasureMod();
-						playerGold++;
-						break;
-					case "AP" : getAP(Integer.parseInt(args[1]));
-						break;
-					case "SUCCESS" : getSucceed();
-						break;
-					case "FAIL" : getFail(args[1]);
-						break;
-					case "LOOKREPLY" :
-						getLookReply();
-						break;
-					case "CHANGE" :
-						getChange();
-						break;
-					default:
-						break;
-					// for each possible input, run its method on args[1]
-					// The output from the server to the user,
+				if(binaryInput) {
+					handleFrame(WireProtocol.readFrame(inputStream));
+				} else {
+					String input = WireProtocol.readLine(inputStream);
+					if(input == null) {
+						throw new EOFException();
+					}
+					handleLine(input);
 				}
 			} catch (IOException e) {
 				System.err.println("Server was closed or connection interrupted");
@@ -153,7 +147,102 @@ public class Client implements Runnable {
 				System.exit(-1);
 			}
 		}
-	}	
+	}
+
+	/**
+	 * Handles a line of the text protocol from the server.
+	 */
+	private void handleLine(String input) throws IOException {
+		String[] args = input.split(" ", 2);
+		switch (args[0]) {
+			case "MESSAGE" : getMessage(args[1]);
+				break;
+			case "ENDTURN" : getEndTurn();
+				break;
+			case "HELLO" : completeReply(input);
+				getHello(args[1]);
+				break;
+			case "GOLD" : getGold(args[1]);
+				break;
+			case "WIN" : getWin();
+				gameOver();
+				break;
+			case "LOSE" : getLose();
+				gameOver();
+				break;
+			case "STARTTURN" : getStartTurn();
+				break;
+			case "HITMOD" : getHitMod(args[1]);
+				break;
+			case "TREASUREMOD" : getTreasureMod();
+				playerGold++;
+				break;
+			case "AP" : getAP(Integer.parseInt(args[1]));
+				break;
+			case "SUCCESS" : completeReply(input);
+				getSucceed();
+				break;
+			case "FAIL" : completeReply(input);
+				getFail(args[1]);
+				break;
+			case "LOOKREPLY" :
+				getLookReply();
+				completeReply(input);
+				break;
+			case "LOOKDELTA" :
+				getLookDelta(args.length == 2 ? args[1] : "");
+				completeReply(input);
+				break;
+			case "LOOKMODE" : completeReply(input);
+				break;
+			case "CHANGE" :
+				getChange();
+				break;
+			case "PROTOCOL" :
+				//Everything after this line is a binary frame
+				binaryInput = true;
+				completeReply(input);
+				break;
+			default:
+				break;
+			// for each possible input, run its method on args[1]
+			// The output from the server to the user,
+		}
+	}
+
+	/**
+	 * Handles a binary frame from the server. Only the common replies have their own
+	 * opcodes; the rest are lines of the text protocol.
+	 */
+	private void handleFrame(byte[] body) throws IOException {
+		if(body.length == 0) {
+			return;
+		}
+		switch (body[0]) {
+			case WireProtocol.SUCCESS : completeReply("SUCCESS");
+				getSucceed();
+				break;
+			case WireProtocol.FAIL :
+				String reason = WireProtocol.payloadText(body);
+				completeReply("FAIL " + reason);
+				getFail(reason);
+				break;
+			case WireProtocol.CHANGE : getChange();
+				break;
+			case WireProtocol.LOOKREPLY :
+				char[][] grid = WireProtocol.payloadGrid(body);
+				synchronized (this) {
+					currentLookReply = grid;
+				}
+				showLookReply();
+				completeReply("LOOKREPLY");
+				break;
+			case WireProtocol.TEXT : handleLine(WireProtocol.payloadText(body));
+				break;
+			default:
+				break;
+		}
+	}
 	/**
 	* Accessor methods
 	* 
@@ -166,6 +255,11 @@ public class Client implements Runnable {
 	}
 
 	private void getEndTurn(){
+		synchronized (this) {
+			if(turnStarted.isDone() && isGameRunning) {
+				turnStarted = new CompletableFuture<Void>();
+			}
+		}
 		if(gui != null) {
 			gui.setChatRoomText(htmlEndturn + htmlBreak);
 		}
@@ -180,9 +274,9 @@ public class Client implements Runnable {
 	}
 	
 	private void getGold(String numberOfGold) {
+		goldRequired = Integer.parseInt(numberOfGold);
 		if(gui != null) {
 			gui.setChatRoomText(htmlGetGold + numberOfGold + htmlBreak);
-			goldRequired = Integer.parseInt(numberOfGold);
 		}
 	}
 	
@@ -197,6 +291,7 @@ public class Client implements Runnable {
 	}
 	
 	private void getStartTurn() {
+		turnStarted().complete(null);
 		if(gui != null) {
 			gui.setChatRoomText(htmlGetStartTurn + htmlBreak);
 		}
@@ -233,22 +328,61 @@ public class Client implements Runnable {
 	public char[][] getLookReply() throws IOException {
 		System.out.println("LOOKREPLY" );
 
-		String line = inputStream.readLine();
+		String line = WireProtocol.readLine(inputStream);
 		int width = line.length();
-		currentLookReply = new char[width][width];
+		char[][] grid = new char[width][width];
 
 		for(int i = 0; i < width; i++) {
-			currentLookReply[0][i] = line.charAt(i);
+			grid[0][i] = line.charAt(i);
 		}
 
 		for(int j = 1; j < width; j++) {
-			line = inputStream.readLine();
+			line = WireProtocol.readLine(inputStream);
 			for(int i = 0; i < width; i++) {
-				currentLookReply[j][i] = line.charAt(i);
+				grid[j][i] = line.charAt(i);
 			}
 		}
 
+		//Swapped in whole, so nobody sees half of a look
+		synchronized (this) {
+			currentLookReply = grid;
+		}
+
+		showLookReply();
+		return currentLookReply;
+	}
 
+	/**
+	 * Applies a LOOKDELTA to the current look reply in place. The delta is a list
+	 * of "row col char" triples for the cells that have changed since the last look.
+	 *
+	 * @param delta the changed cells, empty if nothing changed
+	 */
+	public char[][] getLookDelta(String delta) {
+		String[] cells = delta.isEmpty() ? new String[0] : delta.split(" ");
+		synchronized (this) {
+			if(currentLookReply == null) {
+				// Nothing to apply it to, so ask for the whole grid
+				callLookMode("DELTA");
+				return null;
+			}
+
+			for(int i = 0; i + 2 < cells.length; i += 3) {
+				int row = Integer.parseInt(cells[i]);
+				int col = Integer.parseInt(cells[i + 1]);
+				currentLookReply[row][col] = cells[i + 2].charAt(0);
+			}
+		}
+
+		showLookReply();
+		return currentLookReply;
+	}
+
+	/**
+	 * Shows the current look reply on the GUI, or prints it if there isn't one.
+	 */
+	private void showLookReply() {
+		int width = currentLookReply.length;
 		if(gui != null) {
 			gui.updateMap();
 		} else {
@@ -260,20 +394,88 @@ public class Client implements Runnable {
 			}
 			System.out.println();
 		}
-		return currentLookReply;
 	}
+	/**
+	 * Copies the current look reply, so it can be read while the reader thread
+	 * carries on updating it.
+	 *
+	 * @return the copy, or null if there has not been a look reply yet
+	 */
+	protected synchronized char[][] copyLookReply() {
+		if(currentLookReply == null) {
+			return null;
+		}
+		char[][] copy = new char[currentLookReply.length][];
+		for(int j = 0; j < copy.length; j++) {
+			copy[j] = currentLookReply[j].clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * @return a future completed when this player's turn starts, which already
+	 * is if it is their turn now, or the game is over
+	 */
+	protected synchronized CompletableFuture<Void> turnStarted() {
+		return turnStarted;
+	}
+
+	/**
+	 * @return true if the answer to a command is not a FAIL
+	 */
+	protected static boolean succeeded(String reply) {
+		return !reply.startsWith("FAIL");
+	}
+
+	/**
+	 * Completes the oldest command waiting for an answer.
+	 */
+	private void completeReply(String reply) {
+		CompletableFuture<String> pending;
+		synchronized (this) {
+			pending = pendingReplies.poll();
+		}
+		if(pending != null) {
+			pending.complete(reply);
+		}
+	}
+
+	/**
+	 * Stops the game, and wakes anything waiting for a turn that will not come.
+	 */
+	private void gameOver() {
+		isGameRunning = false;
+		turnStarted().complete(null);
+	}
+
 	/**
 	* Methods that communication from client TO sever
 	* 
 	*  A protected call method for every client TO server commands
 	*/
-	protected void callMove(String direction) {
+	protected CompletableFuture<String> callMove(String direction) {
 		char charDirection = direction.toUpperCase().charAt(0);
-		doOutputMessage("MOVE " + charDirection);
+		return doOutputCommand("MOVE " + charDirection);
 	}
 	
-	protected void callLook() {
-		doOutputMessage("LOOK");
+	protected CompletableFuture<String> callLook() {
+		return doOutputCommand("LOOK");
+	}
+
+	/**
+	 * Asks the server to send LOOKDELTAs (mode "DELTA") or whole LOOKREPLYs (mode "FULL").
+	 */
+	protected CompletableFuture<String> callLookMode(String mode) {
+		return doOutputCommand("LOOKMODE " + mode);
+	}
+
+	/**
+	 * Switches to the binary protocol, which is cheaper for both ends to parse.
+	 */
+	protected synchronized CompletableFuture<String> callBinaryProtocol() {
+		CompletableFuture<String> reply = doOutputCommand(WireProtocol.SWITCH_COMMAND);
+		binaryOutput = true;
+		return reply;
 	}
 
 	protected void callQuit() {
@@ -284,16 +486,16 @@ public class Client implements Runnable {
 		doOutputMessage("HELP");
 	}
 
-	protected void callPickup() {
-		doOutputMessage("PICKUP");
+	protected CompletableFuture<String> callPickup() {
+		return doOutputCommand("PICKUP");
 	}
 	
-	protected void callSetPlayerPos(String x){
-		doOutputMessage("SETPLAYERPOS "+ x);
+	protected CompletableFuture<String> callSetPlayerPos(String x){
+		return doOutputCommand("SETPLAYERPOS "+ x);
 	}
 	
-	protected void callHello(String name){
-		doOutputMessage("HELLO " + name);
+	protected CompletableFuture<String> callHello(String name){
+		return doOutputCommand("HELLO " + name);
 	}
 	
 	protected void callShout(String message){
@@ -307,11 +509,41 @@ public class Client implements Runnable {
 	protected void callChange() {
 		doOutputMessage("CHANGE");
 	}
+	/**
+	 * Sends a command the server answers, e.g. MOVE.
+	 *
+	 * @return a future completed with the first line of the answer, e.g. SUCCESS,
+	 * FAIL and its reason, or LOOKREPLY once the grid has been read
+	 */
+	private synchronized CompletableFuture<String> doOutputCommand(String message) {
+		CompletableFuture<String> reply = new CompletableFuture<String>();
+		pendingReplies.add(reply);
+		if (!doOutputMessage(message)) {
+			// Nothing was sent, so no answer is coming
+			pendingReplies.remove(reply);
+			reply.complete("FAIL command too long to send");
+		}
+		return reply;
+	}
 	/**
 	* Final method that sends from client TO server
+	*
+	* @return false if the message was too long to send as a frame
 	*/
-	private void doOutputMessage(String message) {
-		outputStream.println(message);
+	private synchronized boolean doOutputMessage(String message) {
+		if(binaryOutput) {
+			try {
+				rawOutputStream.write(WireProtocol.encodeCommand(message));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Couldn't send a message that long");
+				return false;
+			} catch (IOException e) {
+				System.err.println("Couldn't send to the server");
+			}
+		} else {
+			outputStream.println(message);
+		}
+		return true;
 	}
 }
 	
\ No newline at end of file
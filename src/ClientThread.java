@@ -1,5 +1,10 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 /**
  *
  * Updated class so when player enters/exits game a look reply is sent.
@@ -13,9 +18,21 @@ import java.io.*;
  * @Author Daniel Jenkyn
  */
 public class ClientThread extends CommandLineUser implements Runnable{
+    //Evicts clients that stop reading while their writer is stuck in a write, shared by every client
+    private static final ScheduledExecutorService EVICTION_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "eviction-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private Socket socket = null;
-    private PrintWriter out;
-    private BufferedReader in;
+
+    private OutputStream out;
+    private DataInputStream in;
+    //Output waiting for the writer thread, so a slow client never blocks the game.
+    private OutboundQueue outbound;
+    //Set while an eviction check is waiting on the timer, so there is only ever one
+    private final AtomicBoolean evictionCheckScheduled = new AtomicBoolean(false);
     /**
     * Constructs a new instance of the ClientThread.
 	*
@@ -24,13 +41,38 @@ public class ClientThread extends CommandLineUser implements Runnable{
 	*/
 	public ClientThread(Socket socket, GameLogic game) {
         super(game);
+        connect(socket, false, OutboundLimits.DEFAULT);
+    }
+    /**
+     * Constructs a new instance of the ClientThread for a player matched into
+     * one of the lobby's rooms, optionally running it on a virtual thread so
+     * that a blocked readLine does not hold an OS thread.
+     */
+    public ClientThread(Socket socket, Lobby lobby, boolean virtualThread) {
+        this(socket, lobby, virtualThread, OutboundLimits.DEFAULT);
+    }
+    /**
+     * Constructs a new instance of the ClientThread whose unsent output is
+     * bounded by the given limits.
+     */
+    public ClientThread(Socket socket, Lobby lobby, boolean virtualThread, OutboundLimits limits) {
+        super(lobby);
+        connect(socket, virtualThread, limits);
+    }
+    /**
+     * Sets up the streams and starts the reader and writer threads. The reader adds the player. The writer only ever
+     * waits, for output or for the client, so it is always a virtual thread and never holds an OS thread.
+     */
+    private void connect(Socket socket, boolean virtualThread, OutboundLimits limits) {
         try {
 			this.socket = socket;
-            out = new PrintWriter(socket.getOutputStream(), true); //Output to the clients input stream.
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream())); //Output message is the in.
-            addPlayer();
-            Thread thread = new Thread(this);
+            outbound = new OutboundQueue(limits);
+            out = socket.getOutputStream(); //Output to the clients input stream.
+            //Read as bytes, not through a Reader, so the stream can switch to binary frames.
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread thread = virtualThread ? Thread.ofVirtual().unstarted(this) : new Thread(this);
             thread.start();
+            Thread.ofVirtual().start(this::writeLoop);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -43,18 +85,48 @@ public class ClientThread extends CommandLineUser implements Runnable{
      * player joins the game and when they leave.
 	*/
     public void run() {
-        manualChange();
         try {
-			String inputLine;
-            while ((inputLine = in.readLine()) != null) {
+            //Added here rather than in the constructor, so a game that will not have the player
+            //fails this client's thread and never the server's accept loop
+            onGameThread(this::addPlayerOrDisconnect);
+            boolean frames = false;
+            while (!frames) {
+                if (!awaitWritable()) {
+                    return;
+                }
+                String inputLine = WireProtocol.readLine(in);
+                if (inputLine == null) {
+                    return;
+                }
                 //Processes command in commandLine user
-				processCommand(inputLine);
-            }            
+                processCommand(inputLine);
+                frames = inputLine.equals(WireProtocol.SWITCH_COMMAND);
+            }
+            //The client has switched to binary frames
+            while (true) {
+                if (!awaitWritable()) {
+                    return;
+                }
+                processFrame(WireProtocol.readFrame(in));
+            }
+        } catch (EOFException e) {
+            //The client has closed the connection
+        } catch (InterruptedException e) {
+            //Nothing interrupts the reader, but if it happens the client is dropped
         } catch (IOException e) {
-            e.printStackTrace();
+            if (outbound.isEvicted()) {
+                System.out.println("Disconnected a client that stopped reading");
+            } else if (outbound.isFinishing()) {
+                //The client was disconnected once it had been told why
+            } else {
+                e.printStackTrace();
+            }
         } finally {
-            removePlayer();
-            manualChange();
+            outbound.close();
+            onGameThread(() -> {
+                removePlayer();
+                manualChange();
+            });
             try {
                 this.socket.close();
             } catch (IOException e) {
@@ -63,9 +135,117 @@ public class ClientThread extends CommandLineUser implements Runnable{
         }
     }
 	/**
-	* Sends message over to client side.
+	* Waits until the client is reading its output again before reading its
+	* next command.
+	*
+	* @return false if the client was evicted instead, so it should be
+	*         disconnected
+	*/
+    private boolean awaitWritable() throws InterruptedException {
+        outbound.awaitUncongested();
+        if (outbound.isEvicted()) {
+            System.out.println("Disconnected a client that stopped reading");
+            return false;
+        }
+        return true;
+    }
+	/**
+	* Writer thread loop
+	*
+	* Writes whatever the game has queued, gathered into one write. If the
+	* client falls too far behind the connection is closed, which ends the
+	* reader thread and removes the player. The eviction deadline is checked
+	* before each write as well as when output is queued.
+	*/
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[64];
+        byte[] chunk = new byte[8192];
+        try {
+            int count;
+            while ((count = outbound.awaitOutput(batch)) > 0) {
+                if (outbound.evictIfOverdue()) {
+                    break;
+                }
+                int length = 0;
+                for (int i = 0; i < count; i++) {
+                    length += batch[i].remaining();
+                }
+                if (chunk.length < length) {
+                    chunk = new byte[length];
+                }
+                int position = 0;
+                for (int i = 0; i < count; i++) {
+                    int remaining = batch[i].remaining();
+                    batch[i].get(chunk, position, remaining);
+                    position += remaining;
+                    batch[i] = null;
+                }
+                out.write(chunk, 0, length);
+                outbound.removeWritten();
+            }
+        } catch (InterruptedException | IOException e) {
+            //The reader notices the connection has gone
+        }
+        if (outbound.isEvicted() || outbound.isFinishing()) {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+	/**
+	* Queues a message to send over to client side. The bytes may be shared
+	* with other clients, so each gets its own buffer over them.
+	*/
+    protected void doOutputBytes(byte[] bytes, boolean isChange) {
+        //If the client has fallen too far behind, close the connection. The writer
+        //may be stuck in a write to the client, and only closing the socket frees it.
+        //The reader then fails and removes the player on the game thread.
+        if (!outbound.add(ByteBuffer.wrap(bytes), isChange)) {
+            closeSocket();
+        } else if (!evictionCheckScheduled.get()) {
+            scheduleEvictionCheck();
+        }
+    }
+	/**
+	* Checks for eviction once the queue is due to be overdue, in case nothing
+	* more is queued and the writer is stuck writing to a client that has
+	* stopped reading.
+	*/
+    private void scheduleEvictionCheck() {
+        long delay = outbound.nanosUntilOverdue();
+        if (delay >= 0 && evictionCheckScheduled.compareAndSet(false, true)) {
+            EVICTION_TIMER.schedule(this::checkEviction, delay + 1, TimeUnit.NANOSECONDS);
+        }
+    }
+    private void checkEviction() {
+        evictionCheckScheduled.set(false);
+        if (outbound.evictIfOverdue()) {
+            closeSocket();
+        } else {
+            //Still congested, but for less long than before, or not congested at all
+            scheduleEvictionCheck();
+        }
+    }
+    private void closeSocket() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+	/**
+	* Lets the writer thread write what is queued, then close the socket, which
+	* ends the reader.
+	*/
+    protected void disconnect() {
+        outbound.finish();
+    }
+	/**
+	* Hands everything queued so far to the writer thread, to go in a single write.
 	*/
-    protected void doOutputMessage(String message) {
-        out.println(message);
+    protected void flushOutput() {
+        outbound.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+/**
+ * Carries out one text command, e.g. MOVE, for a CommandLineUser.
+ *
+ * Handlers are registered with CommandLineUser.registerCommand and are run on
+ * the thread that owns the user's game. A handler reaches the game through the
+ * user's getGame() and getPlayerID(), and answers with reply(). It reports a
+ * command that cannot be carried out by throwing a CommandException, which the
+ * user is sent as a FAIL.
+ */
+@FunctionalInterface
+public interface CommandHandler {
+
+	/**
+	 * Runs the command
+	 *
+	 * @param user
+	 *            the user who sent the command
+	 * @param arg
+	 *            the text after the command and its space, or null if there
+	 *            was none
+	 * @throws CommandException
+	 */
+	public void handle(CommandLineUser user, String arg)
+			throws CommandException;
+}
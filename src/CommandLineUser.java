@@ -1,5 +1,13 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 /**
  * An abstract class to handle the parsing and handling of textual commands,
  * e.g. MOVE and PICKUP.
@@ -9,13 +17,33 @@ import java.util.List;
  * 
  */
 public abstract class CommandLineUser implements PlayerListener, Runnable {
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	// What a whole LOOKREPLY starts with, before the grid
+	private static final byte[] LOOKREPLY_HEADER = ("LOOKREPLY" + LINE_SEPARATOR)
+			.getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] LINE_SEPARATOR_BYTES = LINE_SEPARATOR
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	// Sent instead of a response that is too long for a frame
+	private static final OutboundMessage TOO_LONG = new OutboundMessage(
+			"FAIL reply too long to send");
+
 	// The game which the command line user will operate on.
 	// This is private to enforce the use of "processCommand".
-	private final GameLogic game;
+	// It changes when the user JOINs another room.
+	private volatile GameLogic game;
+
+	// The lobby hosting the game, null if the user is tied to a single game.
+	private final Lobby lobby;
 
 	// The player must be added onnto the map. Initially it is not.
 	private boolean playerAdded = false;
 
+	// Set once the game would not have the player and the user has been
+	// disconnected, after which their commands are ignored
+	private boolean disconnected = false;
+
 	//The ID of the player on the map.
 	int playerID = -1;
 
@@ -25,11 +53,84 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	// store any other messages, e.g. shouts from players, in a List.
 	// Due to network latency, this could still happen at the client side. 
 	private boolean waitingForResponse = false;
-	private final List<String> messageBuffer;
+	private final List<OutboundMessage> messageBuffer;
+
+	// If the game has an event loop, work for this user is queued here and
+	// run on the loop in order. The user may JOIN a game on another loop, so
+	// it cannot go straight onto the game's own queue.
+	private final Deque<Runnable> inbox = new ConcurrentLinkedDeque<Runnable>();
+	private final AtomicBoolean inboxScheduled = new AtomicBoolean(false);
+
+	// Set by LOOKMODE DELTA. The user is then sent only the cells of a look
+	// that differ from the last one they were sent.
+	private boolean lookDeltas = false;
+	private String lastLook = null;
+
+	// Set by PROTOCOL BINARY. Messages are then sent as WireProtocol frames.
+	private boolean binaryFrames = false;
+
+	// Output is flushed once the work that produced it has finished, rather
+	// than after every message. A command can send a response, the messages
+	// buffered behind it and a CHANGE to every player who can see it, so each
+	// thread collects the users it has sent output to and flushes them all
+	// together at the end.
+	private static final ThreadLocal<OutputBatch> OUTPUT_BATCH = ThreadLocal
+			.withInitial(OutputBatch::new);
+
+	private static final class OutputBatch {
+		private final Set<CommandLineUser> users = Collections
+				.newSetFromMap(new IdentityHashMap<CommandLineUser, Boolean>());
+		private int depth = 0;
+	}
+
+	// The commands a user can send, looked up by name straight from the line.
+	// Other commands can be added with registerCommand.
+	private static final CommandTable COMMANDS = new CommandTable();
+
+	static {
+		COMMANDS.register("HELLO", CommandLineUser::commandHello);
+		COMMANDS.register("LOOK", CommandLineUser::commandLook);
+		COMMANDS.register("LOOKMODE", CommandLineUser::commandLookMode);
+		COMMANDS.register("PROTOCOL", CommandLineUser::commandProtocol);
+		COMMANDS.register("PICKUP", CommandLineUser::commandPickup);
+		COMMANDS.register("MOVE", CommandLineUser::commandMove);
+		COMMANDS.register("ATTACK", CommandLineUser::commandAttack);
+		COMMANDS.register("ENDTURN",
+				(user, arg) -> user.game.clientEndTurn(user.playerID));
+		COMMANDS.register("QUIT",
+				(user, arg) -> user.game.removePlayer(user.playerID));
+		COMMANDS.register("HELP",
+				(user, arg) -> user.game.clientHelp(user.playerID));
+		COMMANDS.register("SHOUT", CommandLineUser::commandShout);
+		COMMANDS.register("JOIN", CommandLineUser::commandJoin);
+		COMMANDS.register("CHANGE", CommandLineUser::commandChange);
+		COMMANDS.register("SETPLAYERPOS", CommandLineUser::commandSetPlayerPos);
+	}
+
+	// Single character arguments, e.g. the N of MOVE N, so parsing the most
+	// common commands does not allocate
+	private static final String[] SINGLE_CHAR_ARGS = new String[128];
+
+	static {
+		for (char ch = 0; ch < SINGLE_CHAR_ARGS.length; ch++) {
+			SINGLE_CHAR_ARGS[ch] = String.valueOf(ch);
+		}
+	}
 
 	CommandLineUser(GameLogic game) {
 		this.game = game;
-		this.messageBuffer = new ArrayList<String>();
+		this.lobby = null;
+		this.messageBuffer = new ArrayList<OutboundMessage>();
+	}
+
+	/**
+	 * Creates a user who is matched into one of the lobby's rooms, and may
+	 * later JOIN another.
+	 */
+	CommandLineUser(Lobby lobby) {
+		this.lobby = lobby;
+		this.game = lobby.matchRoom();
+		this.messageBuffer = new ArrayList<OutboundMessage>();
 	}
 
 	/**
@@ -51,9 +152,22 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		outputMessage("MESSAGE " + message, false);
 	}
 
+	/**
+	 * Sends a message that is going to other players too. The first user to
+	 * send it encodes it and the rest share the bytes.
+	 */
+	@Override
+	public void sendMessage(Broadcast message) {
+		outputMessage(message.encoded(CommandLineUser::encodeBroadcast), false);
+	}
+
+	private static OutboundMessage encodeBroadcast(String message) {
+		return new OutboundMessage("MESSAGE " + message);
+	}
+
 	@Override
 	public void sendChange() {
-		outputMessage("CHANGE", false);
+		outputMessage(OutboundMessage.CHANGE, false);
 	}
 
 	/**
@@ -113,21 +227,257 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	 * @param commandString
 	 *            the string containing the command and any argument
 	 */
-	protected final void processCommand(String commandString) {
+	protected final void processCommand(final String commandString) {
+		onGameThread(() -> processCommandNow(commandString));
+	}
+
+	/**
+	 * Processes the body of a WireProtocol frame from the user, once the user
+	 * has switched to frames.
+	 * 
+	 * @param body
+	 *            the opcode and payload of the frame
+	 */
+	protected final void processFrame(final byte[] body) {
+		onGameThread(() -> processFrameNow(body));
+	}
+
+	/**
+	 * Runs a task that touches the game on the thread that owns the game. If
+	 * the game has no event loop that is the calling thread; otherwise the task
+	 * is queued behind this user's earlier work and run on the loop.
+	 * 
+	 * @param task
+	 *            the work to do, e.g. processing a command or adding the player
+	 */
+	protected final void onGameThread(Runnable task) {
+		if (this.game.getEventLoop() == null) {
+			beginOutputBatch();
+			try {
+				task.run();
+			} finally {
+				endOutputBatch();
+			}
+			return;
+		}
+
+		this.inbox.add(task);
+		scheduleInbox();
+	}
+
+	/**
+	 * As onGameThread, but the task is run ahead of any work already queued
+	 * for this user, e.g. so a player who has JOINed a room is added to it
+	 * before the commands they sent after the JOIN are run there.
+	 */
+	private void onGameThreadFirst(Runnable task) {
+		if (this.game.getEventLoop() == null) {
+			onGameThread(task);
+			return;
+		}
+
+		this.inbox.addFirst(task);
+		scheduleInbox();
+	}
+
+	private void scheduleInbox() {
+		if (this.inboxScheduled.compareAndSet(false, true)) {
+			final GameEventLoop loop = this.game.getEventLoop();
+			loop.execute(() -> drainInbox(loop));
+		}
+	}
+
+	/**
+	 * Runs this user's queued work on the loop. If a JOIN moves the user to a
+	 * game on another loop, the rest of the work is handed over to that loop.
+	 */
+	private void drainInbox(GameEventLoop loop) {
+		Runnable task;
+		beginOutputBatch();
+		while ((this.game.getEventLoop() == loop)
+				&& ((task = this.inbox.poll()) != null)) {
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		endOutputBatch();
+
+		this.inboxScheduled.set(false);
+		if (!this.inbox.isEmpty()) {
+			scheduleInbox();
+		}
+	}
+
+	/**
+	 * Starts collecting the users this thread sends output to. Batches nest,
+	 * and only the outermost one flushes.
+	 */
+	private static void beginOutputBatch() {
+		OUTPUT_BATCH.get().depth++;
+	}
+
+	/**
+	 * Flushes every user this thread has sent output to since the outermost
+	 * batch began.
+	 */
+	private static void endOutputBatch() {
+		final OutputBatch batch = OUTPUT_BATCH.get();
+		if (--batch.depth > 0) {
+			return;
+		}
+
+		for (final CommandLineUser user : batch.users) {
+			user.flushOutput();
+		}
+		batch.users.clear();
+	}
+
+	/**
+	 * Adds a command every user can send, or replaces one. The handler is run
+	 * on the thread that owns the user's game, like the built in commands. It
+	 * works through getGame(), getPlayerID() and reply(), and fails by
+	 * throwing a CommandException.
+	 * 
+	 * @param command
+	 *            the command, e.g. "MOVE"
+	 * @param handler
+	 *            carries out the command
+	 */
+	public static void registerCommand(String command, CommandHandler handler) {
+		COMMANDS.register(command,
+				(user, arg) -> user.runRegistered(handler, arg));
+	}
+
+	/**
+	 * Runs a registered command. As for the built in commands, whatever the
+	 * game sends while it runs is held back until the reply, or until the
+	 * handler returns if it does not reply.
+	 */
+	private void runRegistered(CommandHandler handler, String arg)
+			throws CommandException {
+		this.waitingForResponse = true;
+		handler.handle(this, arg);
+
+		if (this.waitingForResponse) {
+			releaseMessages();
+		}
+	}
+
+	/**
+	 * @return the game the user is playing, for a registered command
+	 */
+	public GameLogic getGame() {
+		return this.game;
+	}
+
+	/**
+	 * @return the user's player ID in their game, for a registered command
+	 */
+	public int getPlayerID() {
+		return this.playerID;
+	}
+
+	/**
+	 * Sends the response to a registered command, e.g. "SUCCESS", followed by
+	 * anything the game sent while the command ran. To fail, the command
+	 * throws a CommandException instead.
+	 * 
+	 * @param message
+	 *            the response, without a line separator
+	 */
+	public void reply(String message) {
+		outputMessage(message, true);
+	}
+
+	private static String singleCharArg(char ch) {
+		return (ch < SINGLE_CHAR_ARGS.length)
+				? SINGLE_CHAR_ARGS[ch]
+				: String.valueOf(ch);
+	}
+
+	/**
+	 * Parses and runs a command on the current thread.
+	 */
+	private void processCommandNow(String commandString) {
 		if(commandString.length() == 0) {
 		
 			return;
 		}
 
-		// Process the command string e.g. MOVE N
-		final String commandStringSplit[] = commandString.split(" ", 2);
-		final String command = commandStringSplit[0];
-		final String arg = ((commandStringSplit.length == 2)
-				? commandStringSplit[1]
-						: null);
+		// Process the command string e.g. MOVE N. Only the argument is cut out
+		// of the line, and a single character one is shared.
+		final int space = commandString.indexOf(' ');
+		final int length = (space == -1) ? commandString.length() : space;
+		final String arg;
+		if (space == -1) {
+			arg = null;
+		} else if (commandString.length() == space + 2) {
+			arg = singleCharArg(commandString.charAt(space + 1));
+		} else {
+			arg = commandString.substring(space + 1);
+		}
 
 		try {
-			processCommandAndArgument(command, arg);
+			dispatch(commandString, length, arg);
+		} catch (final CommandException e) {
+			outputMessage("FAIL " + e.getMessage(), true);
+		}
+	}
+
+	/**
+	 * Runs a framed command on the current thread. The common commands are
+	 * dispatched on their opcode, without parsing any text.
+	 */
+	private void processFrameNow(byte[] body) {
+		if (body.length == 0) {
+			return;
+		}
+
+		// The direction of a MOVE or ATTACK, if the frame has one
+		final String direction = (body.length == 2)
+				? singleCharArg((char) (body[1] & 0xFF))
+				: null;
+
+		final String command;
+		String arg = null;
+		switch (body[0]) {
+			case WireProtocol.MOVE :
+				command = "MOVE";
+				arg = direction;
+				break;
+
+			case WireProtocol.LOOK :
+				command = "LOOK";
+				break;
+
+			case WireProtocol.PICKUP :
+				command = "PICKUP";
+				break;
+
+			case WireProtocol.ATTACK :
+				command = "ATTACK";
+				arg = direction;
+				break;
+
+			case WireProtocol.ENDTURN :
+				command = "ENDTURN";
+				break;
+
+			case WireProtocol.TEXT :
+				processCommandNow(WireProtocol.payloadText(body));
+				return;
+
+			default :
+				command = null;
+		}
+
+		try {
+			if (command == null) {
+				throw new CommandException("CMD user Invalid command");
+			}
+			dispatch(command, command.length(), arg);
 		} catch (final CommandException e) {
 			outputMessage("FAIL " + e.getMessage(), true);
 		}
@@ -143,151 +493,285 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		if (this.playerAdded) {
 			throw new RuntimeException("Player already added");
 		}
-		this.playerAdded = true;
 		// The first message must be GOLD
 		outputMessage("GOLD " + this.game.getGoal(), true);
 
 		// Ensures that the instance will listen to the player in the
 		// game for messages from the game
-		this.playerID = this.game.addPlayer(this);
+		try {
+			this.playerID = this.game.addPlayer(this);
+		} catch (final RuntimeException e) {
+			// e.g. there is no free tile. The player never got into the game,
+			// so their place in the room is given back.
+			if (this.lobby != null) {
+				this.lobby.leaveRoom(this.game);
+			}
+			throw e;
+		}
+		this.playerAdded = true;
+
+		if (this.lobby != null) {
+			this.lobby.playerAdded(this.game);
+		}
 
 		//doOutputMessage("HELLO player");
 	}
 
-	protected void removePlayer() {
+	/**
+	 * Adds the player, as addPlayer does, and sends a change so the players
+	 * nearby LOOK again. If the game will not have them, e.g. because there is
+	 * no free tile, the user is sent a FAIL and disconnected rather than kept
+	 * on with no player, which would fail every command they sent.
+	 */
+	protected final void addPlayerOrDisconnect() {
+		try {
+			addPlayer();
+		} catch (final RuntimeException e) {
+			this.disconnected = true;
+			outputMessage("FAIL " + e.getMessage(), true);
+			disconnect();
+			return;
+		}
+		manualChange();
+	}
 
+	/**
+	 * Takes the player out of the game, e.g. when the connection closes. A
+	 * player who could not be added has nothing to take out.
+	 */
+	protected void removePlayer() {
 		if (!this.playerAdded) {
-			throw new RuntimeException("Player not added");
+			return;
 		}
 		this.playerAdded = false;
 
 		this.game.removePlayer(this.playerID);
+
+		if (this.lobby != null) {
+			this.lobby.leaveRoom(this.game);
+		}
 	}
 
 	/**
-	 * Inherited by the base class to handle outputting textual messages in the
-	 * correct manner, e.g. printing to the screen or read by the bot.
+	 * Inherited by the base class to handle outputting messages in the
+	 * correct manner, e.g. sending them over the network.
 	 * 
-	 * Perhaps this could be used to send text over a network?
+	 * The message is already encoded for the protocol the user is using: a
+	 * line of text with its separator, or a WireProtocol frame. The bytes may
+	 * be shared with other users, so they must not be changed.
 	 * 
-	 * @param message Message to output or act upon
+	 * @param bytes
+	 *            the encoded message
+	 * @param isChange
+	 *            whether the message is a CHANGE, which the sub-class may drop
+	 *            if one is already waiting to be sent
 	 */
-	protected abstract void doOutputMessage(String message);
+	protected abstract void doOutputBytes(byte[] bytes, boolean isChange);
+
+	/**
+	 * Sends any output the sub-class has been holding back. This is called
+	 * once the work that produced the output has finished, so a sub-class
+	 * that buffers can write everything from one command at once.
+	 */
+	protected void flushOutput() {
+		// By default, output is not held back
+	}
+
+	/**
+	 * Closes the connection to the user once everything sent so far has been
+	 * written, e.g. after telling them they could not be added to the game.
+	 * Nothing sent afterwards is written.
+	 */
+	protected void disconnect() {
+		// By default, there is no connection to close
+	}
 
 	/**
-	 * Processes the command and an optional argument
+	 * Runs the handler registered for a command
 	 * 
-	 * @param command
-	 *            the text command
+	 * @param line
+	 *            the line starting with the command
+	 * @param length
+	 *            the length of the command at the start of the line
 	 * @param arg
 	 *            the text argument (null if no argument)
 	 * @throws CommandException
 	 */
-	private void processCommandAndArgument(String command, String arg)
+	private void dispatch(String line, int length, String arg)
 			throws CommandException {
+		if (this.disconnected) {
+			// The user is on their way out with no player to command
+			return;
+		}
 		if (!this.playerAdded){
 			throw new RuntimeException("Player not added");
 		}
 
-		if (command.equals("HELLO")){
-			if (arg == null) {
-				throw new CommandException("HELLO needs an argument");
-			}
+		final CommandHandler handler = COMMANDS.find(line, length);
+		if (handler == null) {
+			// If it is none of the above then it must be a bad command.
+			throw new CommandException("CMD user Invalid command");
+		}
+		handler.handle(this, arg);
+	}
 
-			this.waitingForResponse = true;
-			this.game.clientHello(arg, this.playerID);
-			outputMessage("HELLO " + arg, true);
+	private void commandHello(String arg) throws CommandException {
+		if (arg == null) {
+			throw new CommandException("HELLO needs an argument");
+		}
 
-		} else if (command.equals("LOOK")) {
-			if (arg != null) {
-				throw new CommandException("LOOK does not take an argument");
-			}
-			this.waitingForResponse = true;
-			outputMessage("LOOKREPLY" + System.getProperty("line.separator")
-					+ this.game.clientLook(this.playerID), true);
+		this.waitingForResponse = true;
+		this.game.clientHello(arg, this.playerID);
+		outputMessage("HELLO " + arg, true);
+	}
 
-		} else if (command.equals("PICKUP")) {
-			if (arg != null) {
-				throw new CommandException("PICKUP does not take an argument");
-			}
+	private void commandLook(String arg) throws CommandException {
+		if (arg != null) {
+			throw new CommandException("LOOK does not take an argument");
+		}
+		this.waitingForResponse = true;
+		if (this.lookDeltas) {
+			outputLook(this.game.clientLook(this.playerID));
+		} else {
+			outputMessage(lookReply(), true);
+		}
+	}
 
-			this.waitingForResponse = true;
-			this.game.clientPickup(this.playerID);
+	private void commandLookMode(String arg) throws CommandException {
+		if ("DELTA".equals(arg)) {
+			this.lookDeltas = true;
+		} else if ("FULL".equals(arg)) {
+			this.lookDeltas = false;
+		} else {
+			throw new CommandException("LOOKMODE needs DELTA or FULL");
+		}
 
-			outputSuccess();
+		// Whatever the client had, the next look is sent in full
+		this.lastLook = null;
+		this.waitingForResponse = true;
+		outputMessage("LOOKMODE " + arg, true);
+	}
 
-		}else if (command.equals("MOVE")) {
-			// We need to know which direction to move in.
-			if (arg == null) {
-				throw new CommandException("MOVE needs a direction");
-			}
+	private void commandProtocol(String arg) throws CommandException {
+		if (!"BINARY".equals(arg)) {
+			throw new CommandException("PROTOCOL needs BINARY");
+		}
+		if (this.binaryFrames) {
+			throw new CommandException("already using binary frames");
+		}
 
-			this.waitingForResponse = true;
-			this.game.clientMove(getDirection(arg), this.playerID);
+		// The answer is the last line of text. The user's reader has
+		// already switched, as the line was the last text it will read.
+		send(new OutboundMessage(WireProtocol.SWITCH_COMMAND), true);
+		this.binaryFrames = true;
+	}
 
-			outputSuccess();
+	private void commandPickup(String arg) throws CommandException {
+		if (arg != null) {
+			throw new CommandException("PICKUP does not take an argument");
+		}
 
-		} else if (command.equals("ATTACK")) {
-			// We need to know which direction to move in.
-			if (arg == null) {
-				throw new CommandException("ATTACK needs a direction");
-			}
+		this.waitingForResponse = true;
+		this.game.clientPickup(this.playerID);
 
-			this.waitingForResponse = true;
-			this.game.clientAttack(getDirection(arg), this.playerID);
+		outputSuccess();
+	}
 
-			outputSuccess();
+	private void commandMove(String arg) throws CommandException {
+		// We need to know which direction to move in.
+		if (arg == null) {
+			throw new CommandException("MOVE needs a direction");
+		}
 
-		} else if (command.equals("ENDTURN")) {
-			this.game.clientEndTurn(this.playerID);
+		this.waitingForResponse = true;
+		this.game.clientMove(getDirection(arg), this.playerID);
 
-		} else if (command.equals("QUIT")) {
-			this.game.removePlayer(this.playerID);
+		outputSuccess();
+	}
 
-		} else if (command.equals("HELP")) {
-			this.game.clientHelp(this.playerID);
+	private void commandAttack(String arg) throws CommandException {
+		// We need to know which direction to move in.
+		if (arg == null) {
+			throw new CommandException("ATTACK needs a direction");
+		}
 
-		} else if (command.equals("SHOUT")) {
-			// Ensure they have given us something to shout.
-			if (arg == null) {
-				throw new CommandException("need something to shout");
-			}
+		this.waitingForResponse = true;
+		this.game.clientAttack(getDirection(arg), this.playerID);
 
-			htmlCommands(arg);
+		outputSuccess();
+	}
 
-		} else if (command.equals("CHANGE")) {
-			// Ensure they have given us something to shout.
-			if (arg != null) {
-				throw new CommandException("Change does not need an argument");
-			}
-			this.game.clientChange();
+	private void commandShout(String arg) throws CommandException {
+		// Ensure they have given us something to shout.
+		if (arg == null) {
+			throw new CommandException("need something to shout");
+		}
 
-		} else if (command.equals("SETPLAYERPOS")) {
-			if (arg == null) {
-				throw new CommandException("need a position");
-			}
+		htmlCommands(arg);
+	}
 
-			// Obtain two co-ordinates
-			final String coordinates[] = arg.split(" ");
-			
-			if (coordinates.length != 2) {
-				System.out.println(coordinates[0] + coordinates.length);
-				throw new CommandException("need two co-ordinates");
-			}
+	private void commandJoin(String arg) throws CommandException {
+		if (this.lobby == null) {
+			throw new CommandException("this server only hosts one game");
+		}
 
-			try {
-				final int col = Integer.parseInt(coordinates[0]);
-				final int row = Integer.parseInt(coordinates[1]);
+		if (arg != null && arg.equals(this.game.getRoomName())) {
+			throw new CommandException("already in room " + arg);
+		}
 
-				this.game.setPlayerPosition(col, row, this.playerID);
-				outputSuccess();
-			} catch (final NumberFormatException e) {
-				throw new CommandException("co-ordinates must be integers");
-			}
+		// Claim a place in the new room before giving up the old one, so
+		// a full room leaves the player where they were.
+		final GameLogic room = ((arg == null)
+				? this.lobby.matchRoom()
+				: this.lobby.joinRoom(arg));
+		final GameLogic oldRoom = this.game;
 
-		} else {
-			// If it is none of the above then it must be a bad command.
-			throw new CommandException("CMD user Invalid command");
+		if (room == oldRoom) {
+			this.lobby.leaveRoom(room);
+			throw new CommandException("already in room " + room.getRoomName());
+		}
+
+		this.waitingForResponse = true;
+		removePlayer();
+		oldRoom.clientChange();
+
+		this.game = room;
+		outputMessage("JOIN " + room.getRoomName(), true);
+
+		// This is still the old room's thread. The new room may be running
+		// other players' commands on its own loop, so the player is added
+		// there; the rest of this user's work follows it to that loop.
+		onGameThreadFirst(this::addPlayerOrDisconnect);
+	}
+
+	private void commandChange(String arg) throws CommandException {
+		// Ensure they have given us something to shout.
+		if (arg != null) {
+			throw new CommandException("Change does not need an argument");
+		}
+		this.game.clientChange();
+	}
+
+	private void commandSetPlayerPos(String arg) throws CommandException {
+		if (arg == null) {
+			throw new CommandException("need a position");
+		}
+
+		// Obtain two co-ordinates
+		final String coordinates[] = arg.split(" ");
+		
+		if (coordinates.length != 2) {
+			throw new CommandException("need two co-ordinates");
+		}
+
+		try {
+			final int col = Integer.parseInt(coordinates[0]);
+			final int row = Integer.parseInt(coordinates[1]);
+
+			this.game.setPlayerPosition(col, row, this.playerID);
+			outputSuccess();
+		} catch (final NumberFormatException e) {
+			throw new CommandException("co-ordinates must be integers");
 		}
 	}
 
@@ -310,6 +794,73 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		}
 	}
 
+	/**
+	 * Sends the reply to a LOOK in delta mode. If the grid is the same size as
+	 * the last one sent, only the cells that changed are sent, as a single
+	 * line of the form
+	 * 
+	 * LOOKDELTA row col char row col char ...
+	 * 
+	 * The whole grid is still sent if that would be shorter.
+	 * 
+	 * @param look
+	 *            the grid from GameLogic.clientLook
+	 */
+	private void outputLook(String look) {
+		final String fullReply = "LOOKREPLY" + LINE_SEPARATOR + look;
+		final String previous = this.lastLook;
+		this.lastLook = look;
+
+		if ((previous == null) || (previous.length() != look.length())) {
+			outputMessage(fullReply, true);
+			return;
+		}
+
+		final int rowLength = look.indexOf(LINE_SEPARATOR)
+				+ LINE_SEPARATOR.length();
+		final StringBuilder delta = new StringBuilder("LOOKDELTA");
+
+		for (int i = 0; i < look.length(); i++) {
+			final char cell = look.charAt(i);
+			if (cell != previous.charAt(i)) {
+				delta.append(' ').append(i / rowLength).append(' ')
+						.append(i % rowLength).append(' ').append(cell);
+
+				if (delta.length() >= fullReply.length()) {
+					outputMessage(fullReply, true);
+					return;
+				}
+			}
+		}
+
+		outputMessage(delta.toString(), true);
+	}
+
+	/**
+	 * Renders a whole LOOKREPLY straight into the bytes that are sent, without
+	 * building the grid as a String first. A user on frames gets the cells
+	 * rendered straight into a LOOKREPLY frame.
+	 */
+	private OutboundMessage lookReply() {
+		if (this.binaryFrames) {
+			final int side = (2 * this.game.getLookDistance(this.playerID)) + 1;
+			final ByteBuffer frame = WireProtocol.startLookFrame(side);
+
+			this.game.clientLookCells(this.playerID, frame);
+			return OutboundMessage.fromFrame(frame.array());
+		}
+
+		final int gridLength = GameLogic.lookReplyLength(this.game
+				.getLookDistance(this.playerID));
+		final ByteBuffer line = ByteBuffer.allocate(LOOKREPLY_HEADER.length
+				+ gridLength + LINE_SEPARATOR_BYTES.length);
+
+		line.put(LOOKREPLY_HEADER);
+		this.game.clientLook(this.playerID, line);
+		line.put(LINE_SEPARATOR_BYTES);
+		return OutboundMessage.fromLine(line.array());
+	}
+
 	/**
 	 * Sends a success message in the event that a command has succeeded
 	 */
@@ -318,7 +869,7 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	}
 
 	/**
-	 * Outputs a message to the player, using the abstract "doOutputMessage"
+	 * Outputs a message to the player, using the abstract "doOutputBytes"
 	 * method, which allows the sub-class to handle it in different ways, e.g.
 	 * simply printing it, or perhaps sending it over the network?
 	 * 
@@ -333,21 +884,19 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	 *            "SUCCESS" or "FAIL".
 	 */
 	private final void outputMessage(String message, boolean isResponse) {
+		outputMessage(new OutboundMessage(message), isResponse);
+	}
+
+	private final void outputMessage(OutboundMessage message,
+			boolean isResponse) {
 		// If the user is waiting for a response, buffer the message
 		if (this.waitingForResponse) {
 			if (isResponse) {
 				// Output the response
-				doOutputMessage(message);
+				send(message, true);
 
-				// We can now send everything from the buffer and clear it
-				for (final String line : this.messageBuffer) {
-					doOutputMessage(line);
-				}
-
-				this.messageBuffer.clear();
-
-				// We are no longer waiting for a response
-				this.waitingForResponse = false;
+				// We can now send everything from the buffer
+				releaseMessages();
 			} else {
 				// Add it to the buffer to be sent when the response has been
 				// sent
@@ -355,31 +904,74 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 			}
 		} else {
 			// The user is not waiting for a response. Send it immediately.
-			doOutputMessage(message);
+			send(message, isResponse);
 		}
 	}
 
+	/**
+	 * Sends everything held back while waiting for a response, and stops
+	 * waiting
+	 */
+	private void releaseMessages() {
+		for (final OutboundMessage buffered : this.messageBuffer) {
+			send(buffered, false);
+		}
+
+		this.messageBuffer.clear();
+
+		// We are no longer waiting for a response
+		this.waitingForResponse = false;
+	}
+
+	/**
+	 * Sends a message in whichever protocol the user is using. A message too
+	 * long for a frame, e.g. the echo of a huge SHOUT, is not sent in part: a
+	 * response is answered with a FAIL instead, and anything else is dropped.
+	 */
+	private void send(OutboundMessage message, boolean isResponse) {
+		byte[] bytes;
+		if (this.binaryFrames) {
+			try {
+				bytes = message.frame();
+			} catch (final IllegalArgumentException e) {
+				if (!isResponse) {
+					System.err.println("Dropped a message too long to send");
+					return;
+				}
+				bytes = TOO_LONG.frame();
+			}
+		} else {
+			bytes = message.line();
+		}
+		doOutputBytes(bytes, message.isChange());
+
+		final OutputBatch batch = OUTPUT_BATCH.get();
+		if (batch.depth == 0) {
+			flushOutput();
+		} else {
+			batch.users.add(this);
+		}
+	}
+
+	/**
+	 * Shouts the argument, turning a leading formatting code such as /bld or
+	 * /r into HTML. The shout is built once here and shared by every player.
+	 */
 	public void htmlCommands(String arg){
 		String playername = this.game.getPlayerName(this.playerID);
 
 		if (arg.startsWith("/bld")) {
-			String[] inputArray = arg.split("/bld", 2);
-			this.game.clientShout(playername + ": " + "<b>" + inputArray[1] + "</b>");
+			this.game.clientShout(playername + ": " + "<b>" + arg.substring(4) + "</b>");
 		} else if (arg.startsWith("/itl")) {
-			String[] inputArray = arg.split("/itl", 2);
-			this.game.clientShout(playername + ": " + "<i>" + inputArray[1] + "</i>");
+			this.game.clientShout(playername + ": " + "<i>" + arg.substring(4) + "</i>");
 		} else if (arg.startsWith("/g")) {
-			String[] inputArray = arg.split("/g", 2);
-			this.game.clientShout(playername + ": " + "<font color = green>" + inputArray[1] + "</font>");
+			this.game.clientShout(playername + ": " + "<font color = green>" + arg.substring(2) + "</font>");
 		} else if (arg.startsWith("/r")) {
-			String[] inputArray = arg.split("/r", 2);
-			this.game.clientShout(playername + ": " + "<font color = red>" + inputArray[1] + "</font>");
+			this.game.clientShout(playername + ": " + "<font color = red>" + arg.substring(2) + "</font>");
 		} else if (arg.startsWith("/o")) {
-			String[] inputArray = arg.split("/o", 2);
-			this.game.clientShout(playername + ": " + "<font color = orange>" + inputArray[1] + "</font>");
+			this.game.clientShout(playername + ": " + "<font color = orange>" + arg.substring(2) + "</font>");
 		} else if (arg.startsWith("/b")) {
-			String[] inputArray = arg.split("/b", 2);
-			this.game.clientShout(playername + ": " + "<font color = blue>" + inputArray[1] + "</font>");
+			this.game.clientShout(playername + ": " + "<font color = blue>" + arg.substring(2) + "</font>");
 		} else {
 			this.game.clientShout(playername + ": " + arg );
 		}
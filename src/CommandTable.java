@@ -0,0 +1,112 @@
+/**
+ * Looks up the handler for a command by name, straight from the line the
+ * command was sent on.
+ *
+ * The names are kept in an open addressed hash table at least four times
+ * larger than the number of commands, so most lookups hash the name, find it
+ * in the first slot and compare it in place. Nothing is allocated to look a
+ * command up, as the name is never cut out of the line.
+ *
+ * Commands are registered rarely and looked up all the time, so registering
+ * builds a new table and swaps it in. Lookups never need a lock.
+ */
+public class CommandTable {
+	private static final class Slot {
+		private final String name;
+		private final CommandHandler handler;
+
+		private Slot(String name, CommandHandler handler) {
+			this.name = name;
+			this.handler = handler;
+		}
+	}
+
+	private volatile Slot[] slots = new Slot[16];
+	private int size = 0;
+
+	/**
+	 * Adds a command, replacing any handler already registered for the name
+	 *
+	 * @param name
+	 *            the command, e.g. "MOVE"
+	 * @param handler
+	 *            what to do when the command is sent
+	 */
+	public synchronized void register(String name, CommandHandler handler) {
+		if (name.isEmpty() || (name.indexOf(' ') != -1)) {
+			throw new IllegalArgumentException(
+					"a command must be a single word");
+		}
+
+		final Slot[] current = this.slots;
+		final boolean replacing = (find(current, name, name.length()) != null);
+		final int newSize = replacing ? this.size : this.size + 1;
+
+		int capacity = current.length;
+		while (capacity < newSize * 4) {
+			capacity *= 2;
+		}
+
+		final Slot[] table = new Slot[capacity];
+		for (final Slot slot : current) {
+			if ((slot != null) && !slot.name.equals(name)) {
+				insert(table, slot);
+			}
+		}
+		insert(table, new Slot(name, handler));
+
+		this.size = newSize;
+		this.slots = table;
+	}
+
+	/**
+	 * Finds the handler for the command at the start of a line
+	 *
+	 * @param line
+	 *            the line the command was sent on
+	 * @param length
+	 *            the length of the command, e.g. up to the first space
+	 * @return the handler, or null if there is no such command
+	 */
+	public CommandHandler find(String line, int length) {
+		final Slot slot = find(this.slots, line, length);
+		return (slot == null) ? null : slot.handler;
+	}
+
+	private static Slot find(Slot[] table, String line, int length) {
+		final int mask = table.length - 1;
+		int index = hash(line, length) & mask;
+
+		Slot slot;
+		while ((slot = table[index]) != null) {
+			if ((slot.name.length() == length)
+					&& line.regionMatches(0, slot.name, 0, length)) {
+				return slot;
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	private static void insert(Slot[] table, Slot slot) {
+		final int mask = table.length - 1;
+		int index = hash(slot.name, slot.name.length()) & mask;
+
+		while (table[index] != null) {
+			index = (index + 1) & mask;
+		}
+		table[index] = slot;
+	}
+
+	/**
+	 * Hashes the first length characters, as String.hashCode would hash them
+	 * on their own, then spreads the bits for a small table
+	 */
+	private static int hash(String line, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = (31 * hash) + line.charAt(i);
+		}
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -12,6 +12,34 @@ public enum CompassDirection {
 		this.text = text;
 	}
 
+	/**
+	 * @return how far a step in this direction moves along a row
+	 */
+	public int colOffset() {
+		switch (this) {
+			case EAST :
+				return 1;
+			case WEST :
+				return -1;
+			default :
+				return 0;
+		}
+	}
+
+	/**
+	 * @return how far a step in this direction moves down a column
+	 */
+	public int rowOffset() {
+		switch (this) {
+			case NORTH :
+				return -1;
+			case SOUTH :
+				return 1;
+			default :
+				return 0;
+		}
+	}
+
 	/**
 	 * @return a string representation of the compass direction
 	 */
@@ -0,0 +1,138 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An OccupancyGrid holding a cell for every cell of the map.
+ *
+ * Rather than scanning every player to see if one is on a tile, the game keeps
+ * the ID of the player on each cell in a flat array, in row-major order. The
+ * players keep it up to date as they move and die, so checking a tile is a
+ * single array lookup however many players there are.
+ *
+ * The grid also keeps an index of the walkable cells nobody is standing on, so
+ * that a new player can be given a random free cell in constant time, without
+ * sampling the map until a free one turns up. Walkable cells never change, so
+ * the index is only kept up to date as players arrive and leave.
+ */
+public class DenseOccupancyGrid extends OccupancyGrid {
+	private final int width;
+	private final int height;
+	private final int[] cells;
+
+	// The indices of the free walkable cells, in no order, in [0, freeCount)
+	private final int[] freeCells;
+	private int freeCount = 0;
+
+	// Where each cell is in freeCells, or one of the values below
+	private final int[] freeSlots;
+	private static final int OCCUPIED = -1;
+	private static final int WALL = -2;
+
+	/**
+	 * Creates an empty grid for the map, with every walkable cell free
+	 *
+	 * @param map
+	 *            the map the players are on
+	 */
+	public DenseOccupancyGrid(Map map) {
+		this.width = map.getMapWidth();
+		this.height = map.getMapHeight();
+		this.cells = new int[this.width * this.height];
+		Arrays.fill(this.cells, EMPTY);
+
+		this.freeSlots = new int[this.cells.length];
+		int walkable = 0;
+		for (int row = 0; row < this.height; row++) {
+			for (int col = 0; col < this.width; col++) {
+				final boolean isWalkable = map.isWalkable(col, row);
+				this.freeSlots[row * this.width + col] = isWalkable ? OCCUPIED
+						: WALL;
+				if (isWalkable) {
+					walkable++;
+				}
+			}
+		}
+
+		this.freeCells = new int[walkable];
+		for (int index = 0; index < this.freeSlots.length; index++) {
+			if (this.freeSlots[index] == OCCUPIED) {
+				addFree(index);
+			}
+		}
+	}
+
+	@Override
+	public int playerAt(int col, int row) {
+		if ((col < 0) || (col >= this.width) || (row < 0)
+				|| (row >= this.height)) {
+			return EMPTY;
+		}
+		return this.cells[row * this.width + col];
+	}
+
+	@Override
+	public void place(int playerID, Location location) {
+		final int index = indexOf(location);
+		if (index != -1) {
+			this.cells[index] = playerID;
+			removeFree(index);
+		}
+	}
+
+	@Override
+	public void vacate(int playerID, Location location) {
+		final int index = indexOf(location);
+		if ((index != -1) && (this.cells[index] == playerID)) {
+			this.cells[index] = EMPTY;
+			addFree(index);
+		}
+	}
+
+	/**
+	 * @return the number of walkable cells nobody is standing on
+	 */
+	public int freeCellCount() {
+		return this.freeCount;
+	}
+
+	@Override
+	public Location randomFreeCell(Random random) {
+		if (this.freeCount == 0) {
+			return null;
+		}
+
+		final int index = this.freeCells[random.nextInt(this.freeCount)];
+		return new Location(index % this.width, index / this.width);
+	}
+
+	private void addFree(int index) {
+		if (this.freeSlots[index] == OCCUPIED) {
+			this.freeSlots[index] = this.freeCount;
+			this.freeCells[this.freeCount++] = index;
+		}
+	}
+
+	/**
+	 * Takes a cell out of the free list by moving the last free cell into its
+	 * slot. Walls are never in the list, so this ignores them.
+	 */
+	private void removeFree(int index) {
+		final int slot = this.freeSlots[index];
+		if (slot >= 0) {
+			final int last = this.freeCells[--this.freeCount];
+			this.freeCells[slot] = last;
+			this.freeSlots[last] = slot;
+			this.freeSlots[index] = OCCUPIED;
+		}
+	}
+
+	private int indexOf(Location location) {
+		final int col = location.getCol();
+		final int row = location.getRow();
+		if ((col < 0) || (col >= this.width) || (row < 0)
+				|| (row >= this.height)) {
+			return -1;
+		}
+		return row * this.width + col;
+	}
+}
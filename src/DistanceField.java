@@ -0,0 +1,148 @@
+import java.util.Arrays;
+
+/**
+ * How many steps it is from every cell of a map to the nearest cell of one
+ * kind, e.g. the nearest exit.
+ * 
+ * It is worked out by a breadth first search outwards from every target at
+ * once. Any number of players can then find their way by stepping to whichever
+ * neighbour is nearer, without searching for themselves. Navigation keeps the
+ * fields up to date as items are picked up, by rebuilding a field whole into
+ * the arrays it already has.
+ */
+public class DistanceField {
+	// The distance from a cell that cannot reach any target
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private static final CompassDirection[] DIRECTIONS = CompassDirection
+			.values();
+
+	private final int width;
+	private final int height;
+	private final char target;
+	private final int[] distances;
+	// Kept between rebuilds so that they allocate nothing
+	private final int[] queue;
+	private int targets;
+
+	/**
+	 * Works out the distances to the nearest cell showing the target
+	 * 
+	 * @param map
+	 *            the map to walk on
+	 * @param target
+	 *            the character of the target cells, e.g. 'E' for exits
+	 */
+	public DistanceField(Map map, char target) {
+		this.width = map.getMapWidth();
+		this.height = map.getMapHeight();
+		this.target = target;
+		this.distances = new int[this.width * this.height];
+		this.queue = new int[this.distances.length];
+		rebuild(map);
+	}
+
+	/**
+	 * Works the whole field out again, e.g. after a target has been picked up,
+	 * reusing its arrays
+	 * 
+	 * @param map
+	 *            the map the field was made for
+	 */
+	public void rebuild(Map map) {
+		final int[] queue = this.queue;
+		Arrays.fill(this.distances, UNREACHABLE);
+
+		// Every target is a starting point
+		int tail = 0;
+		for (int row = 0; row < this.height; row++) {
+			for (int col = 0; col < this.width; col++) {
+				if (map.toChar(col, row) == this.target) {
+					final int index = (row * this.width) + col;
+					this.distances[index] = 0;
+					queue[tail++] = index;
+				}
+			}
+		}
+		this.targets = tail;
+
+		int head = 0;
+		while (head < tail) {
+			final int index = queue[head++];
+			final int col = index % this.width;
+			final int row = index / this.width;
+			final int next = this.distances[index] + 1;
+
+			for (final CompassDirection direction : DIRECTIONS) {
+				final int nextCol = col + direction.colOffset();
+				final int nextRow = row + direction.rowOffset();
+				if (!map.insideMap(nextCol, nextRow)
+						|| !map.isWalkable(nextCol, nextRow)) {
+					continue;
+				}
+
+				final int nextIndex = (nextRow * this.width) + nextCol;
+				if (this.distances[nextIndex] == UNREACHABLE) {
+					this.distances[nextIndex] = next;
+					queue[tail++] = nextIndex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of target cells the field leads to
+	 */
+	public int targetCount() {
+		return this.targets;
+	}
+
+	/**
+	 * @return the number of steps from the cell to the nearest target, or
+	 *         UNREACHABLE if there is no way to one
+	 */
+	public int distance(int col, int row) {
+		if ((col < 0) || (col >= this.width) || (row < 0)
+				|| (row >= this.height)) {
+			return UNREACHABLE;
+		}
+		return this.distances[(row * this.width) + col];
+	}
+
+	/**
+	 * @return the distance from the location, as for distance(col, row)
+	 */
+	public int distance(Location location) {
+		return distance(location.getCol(), location.getRow());
+	}
+
+	/**
+	 * Finds the way to the nearest target. Where two neighbours are as near,
+	 * the first in the order N, E, S, W is taken.
+	 * 
+	 * @return the direction of a neighbour one step nearer a target, or null
+	 *         if the cell is a target or no target can be reached
+	 */
+	public CompassDirection nextStep(int col, int row) {
+		final int here = distance(col, row);
+		if ((here == 0) || (here == UNREACHABLE)) {
+			return null;
+		}
+
+		for (final CompassDirection direction : DIRECTIONS) {
+			if (distance(col + direction.colOffset(),
+					row + direction.rowOffset()) == here - 1) {
+				return direction;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the direction to step from the location, as for nextStep(col,
+	 *         row)
+	 */
+	public CompassDirection nextStep(Location location) {
+		return nextStep(location.getCol(), location.getRow());
+	}
+}
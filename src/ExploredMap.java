@@ -0,0 +1,247 @@
+import java.util.Arrays;
+
+/**
+ * What a player has seen of the map so far, built up from their LOOKREPLYs.
+ *
+ * Positions are relative to wherever the player started, which is (0, 0),
+ * because a client is never told where it is on the map. The known area grows
+ * in every direction as more of the map is seen.
+ *
+ * Other players are only remembered where they were in the latest look, and
+ * block a path only until the next one.
+ */
+public class ExploredMap {
+	// A cell that has never been seen
+	public static final char UNKNOWN = '\0';
+
+	// How much to grow by beyond the cells that are needed, so a player
+	// walking in one direction does not copy the map every step
+	private static final int SLACK = 16;
+
+	private static final CompassDirection[] DIRECTIONS = CompassDirection
+			.values();
+
+	private char[] cells = new char[0];
+	private int firstCol = 0;
+	private int firstRow = 0;
+	private int width = 0;
+	private int height = 0;
+
+	// The players in the latest look, as indexes into cells
+	private int[] players = new int[0];
+	private int playerCount = 0;
+
+	/**
+	 * Tests a cell, e.g. for whether it is worth walking to
+	 */
+	private interface CellTest {
+		public boolean test(int col, int row);
+	}
+
+	/**
+	 * @return the content of a cell, or UNKNOWN if it has not been seen
+	 */
+	public char get(int col, int row) {
+		if (!inside(col, row)) {
+			return UNKNOWN;
+		}
+		return this.cells[index(col, row)];
+	}
+
+	/**
+	 * Records the content of a cell, e.g. once its item has been picked up
+	 */
+	public void set(int col, int row, char content) {
+		grow(col, col, row, row);
+		this.cells[index(col, row)] = content;
+	}
+
+	/**
+	 * @return true if the cell has been seen and is not a wall
+	 */
+	public boolean isWalkable(int col, int row) {
+		final char content = get(col, row);
+		return (content != UNKNOWN) && (content != '#');
+	}
+
+	/**
+	 * Adds what a look shows to the map. Cells the look could not see are left
+	 * as they were.
+	 *
+	 * @param look
+	 *            the LOOKREPLY, centred on the player
+	 * @param col
+	 *            the player's column
+	 * @param row
+	 *            the player's row
+	 */
+	public void merge(char[][] look, int col, int row) {
+		final int centre = look.length / 2;
+		grow(col - centre, col + centre, row - centre, row + centre);
+
+		this.playerCount = 0;
+		for (int y = 0; y < look.length; y++) {
+			for (int x = 0; x < look[y].length; x++) {
+				final char content = look[y][x];
+				if (content == 'X') {
+					continue;
+				}
+
+				final int index = index(col + x - centre, row + y - centre);
+				if (content == 'P') {
+					// Somebody is standing on it, so it is not a wall
+					addPlayer(index);
+					if (this.cells[index] == UNKNOWN) {
+						this.cells[index] = '.';
+					}
+				} else {
+					this.cells[index] = content;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the shortest known path to the nearest cell holding one of the
+	 * given contents, other than the cell the player is on
+	 *
+	 * @param col
+	 *            the player's column
+	 * @param row
+	 *            the player's row
+	 * @param targets
+	 *            the contents wanted, e.g. "G"
+	 * @return the first step of the path, or null if no such cell can be
+	 *         reached
+	 */
+	public CompassDirection firstStepTowards(int col, int row, String targets) {
+		return firstStep(col, row,
+				(c, r) -> targets.indexOf(get(c, r)) != -1);
+	}
+
+	/**
+	 * Finds the shortest known path to the nearest cell next to one that has
+	 * not been seen, where a look would show something new
+	 *
+	 * @return the first step of the path, or null if every cell that can be
+	 *         reached has been seen
+	 */
+	public CompassDirection firstStepTowardsFrontier(int col, int row) {
+		return firstStep(col, row, (c, r) -> (get(c, r - 1) == UNKNOWN)
+				|| (get(c + 1, r) == UNKNOWN) || (get(c, r + 1) == UNKNOWN)
+				|| (get(c - 1, r) == UNKNOWN));
+	}
+
+	/**
+	 * Searches outwards from the player, breadth first, over the cells known
+	 * to be walkable. Every step costs the same, so the first goal reached is
+	 * the nearest.
+	 */
+	private CompassDirection firstStep(int col, int row, CellTest goal) {
+		if (!inside(col, row)) {
+			return null;
+		}
+
+		final int start = index(col, row);
+		final int[] queue = new int[this.cells.length];
+		// The direction of the first step to each cell, as an ordinal plus
+		// one, or zero if it has not been reached
+		final byte[] firstSteps = new byte[this.cells.length];
+
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = start;
+		for (int i = 0; i < this.playerCount; i++) {
+			// Nobody can walk through another player
+			firstSteps[this.players[i]] = -1;
+		}
+
+		while (head < tail) {
+			final int index = queue[head++];
+			final int c = this.firstCol + (index % this.width);
+			final int r = this.firstRow + (index / this.width);
+
+			if ((index != start) && goal.test(c, r)) {
+				return DIRECTIONS[firstSteps[index] - 1];
+			}
+
+			for (final CompassDirection direction : DIRECTIONS) {
+				final int nextCol = c + direction.colOffset();
+				final int nextRow = r + direction.rowOffset();
+				if (!isWalkable(nextCol, nextRow)) {
+					continue;
+				}
+
+				final int next = index(nextCol, nextRow);
+				if ((next == start) || (firstSteps[next] != 0)) {
+					continue;
+				}
+				firstSteps[next] = (index == start)
+						? (byte) (direction.ordinal() + 1)
+						: firstSteps[index];
+				queue[tail++] = next;
+			}
+		}
+		return null;
+	}
+
+	private void addPlayer(int index) {
+		if (this.playerCount == this.players.length) {
+			this.players = Arrays.copyOf(this.players,
+					Math.max(4, this.playerCount * 2));
+		}
+		this.players[this.playerCount++] = index;
+	}
+
+	private boolean inside(int col, int row) {
+		return (col >= this.firstCol) && (col < this.firstCol + this.width)
+				&& (row >= this.firstRow)
+				&& (row < this.firstRow + this.height);
+	}
+
+	private int index(int col, int row) {
+		return ((row - this.firstRow) * this.width) + (col - this.firstCol);
+	}
+
+	/**
+	 * Makes sure the given area is inside the map, copying what is known into
+	 * a bigger one if it is not
+	 */
+	private void grow(int minCol, int maxCol, int minRow, int maxRow) {
+		if (inside(minCol, minRow) && inside(maxCol, maxRow)) {
+			return;
+		}
+
+		final boolean empty = (this.width == 0);
+		final int newFirstCol = empty
+				? minCol - SLACK
+				: Math.min(this.firstCol, minCol - SLACK);
+		final int newFirstRow = empty
+				? minRow - SLACK
+				: Math.min(this.firstRow, minRow - SLACK);
+		final int newLastCol = empty
+				? maxCol + SLACK
+				: Math.max(this.firstCol + this.width - 1, maxCol + SLACK);
+		final int newLastRow = empty
+				? maxRow + SLACK
+				: Math.max(this.firstRow + this.height - 1, maxRow + SLACK);
+
+		final int newWidth = newLastCol - newFirstCol + 1;
+		final int newHeight = newLastRow - newFirstRow + 1;
+		final char[] newCells = new char[newWidth * newHeight];
+
+		// The players move about, so the old indexes are dropped
+		this.playerCount = 0;
+		for (int r = 0; r < this.height; r++) {
+			System.arraycopy(this.cells, r * this.width, newCells,
+					((this.firstRow + r - newFirstRow) * newWidth)
+							+ (this.firstCol - newFirstCol), this.width);
+		}
+
+		this.cells = newCells;
+		this.firstCol = newFirstCol;
+		this.firstRow = newFirstRow;
+		this.width = newWidth;
+		this.height = newHeight;
+	}
+}
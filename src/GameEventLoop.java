@@ -0,0 +1,68 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs every command for one game, one at a time, in the order they were submitted.
+ * <p>
+ * Any thread may submit work. It is placed on a lock-free queue, and the loop drains that queue on one thread of a
+ * shared executor. Only one drain is ever scheduled at a time, so the game only ever has a single writer and needs no
+ * locking of its own. Many games can share the same executor; each one simply takes a slot on it while it has work.
+ *
+ * @Author Daniel Jenkyn
+ */
+public class GameEventLoop implements Executor {
+    // How many tasks are run before giving the executor thread to another game
+    private static final int BATCH_SIZE = 64;
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * @param executor the threads shared by the games' loops
+     */
+    public GameEventLoop(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a task to be run by the game's loop.
+     *
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Runs queued tasks until the queue is empty or the batch is used up, then gives up the slot. If more work arrived
+     * in the meantime the loop is scheduled again.
+     */
+    private void drain() {
+        Runnable task;
+        int count = 0;
+        while (count < BATCH_SIZE && (task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // One bad command must not stop the game
+                e.printStackTrace();
+            }
+            count++;
+        }
+
+        scheduled.set(false);
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -1,10 +1,20 @@
 import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 /**
  * This class has been edited so that it is thread safe and is synchronized.
+ *
+ * The guarded methods use a ReentrantLock rather than synchronized. Shouts and
+ * changes write to every player's socket while holding it, and a virtual thread
+ * blocking inside a monitor would pin its carrier thread.
+ *
+ * A game can instead be given a GameEventLoop, in which case every command is
+ * run on that loop and the lock is never contended.
  */
 public class GameLogic {
 	Map map;
@@ -13,9 +23,41 @@ public class GameLogic {
 
 	private final List<Player> players;
 
+	// Which player is standing on each tile of the map
+	private final OccupancyGrid occupancy;
+
+	// The ways to the exits and items, shared by the AI players and only made
+	// once one of them needs it
+	private Navigation navigation = null;
+
+	// Shared, rather than seeding a new generator for every start location
+	private final Random random;
+
+	// Tiles that have changed since the last CHANGE was sent
+	private final List<Location> changedTiles = new ArrayList<Location>();
+
+	// Set instead of recording more than MAX_CHANGED_TILES tiles, when so
+	// much has changed without a CHANGE being sent that everybody is told
+	private boolean everythingChanged = false;
+	private static final int MAX_CHANGED_TILES = 64;
+
+	// Reused for every LOOK, which only ever runs one at a time
+	private ByteBuffer lookBuffer = ByteBuffer.allocate(lookReplyLength(3));
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	// Guards the methods that were previously synchronized
+	private final ReentrantLock lock = new ReentrantLock();
+
 	// The current player's turn, -1 indicates game not started
 	private int currentPlayer = -1;
 
+	// The name of the room this game is hosted in by a Lobby
+	private final String roomName;
+
+	// Runs every command for this game, null if commands run on the caller
+	private GameEventLoop eventLoop = null;
+
 	/**
 	 * Constructor that specifies the map which the game should be played on.
 	 * 
@@ -26,7 +68,58 @@ public class GameLogic {
 	 */
 	public GameLogic(String mapFile) throws FileNotFoundException,
 			ParseException {
-		this.map = new Map(mapFile);
+		this(mapFile, "default");
+	}
+
+	/**
+	 * Constructor for a game hosted as a named room.
+	 * 
+	 * @param mapFile
+	 *            The name of the file to load the map from.
+	 * @param roomName
+	 *            The name players use to JOIN this game.
+	 * @throws FileNotFoundException
+	 *             , ParseException
+	 */
+	public GameLogic(String mapFile, String roomName)
+			throws FileNotFoundException, ParseException {
+		this(mapFile, roomName, Map.Storage.AUTO);
+	}
+
+	/**
+	 * Constructor for a game hosted as a named room, choosing how the map's
+	 * cells are stored, e.g. CHUNKED for a binary map too big for memory.
+	 * 
+	 * @param mapFile
+	 *            The name of the file to load the map from.
+	 * @param roomName
+	 *            The name players use to JOIN this game.
+	 * @param storage
+	 *            How to store the map's cells.
+	 * @throws FileNotFoundException
+	 *             , ParseException
+	 */
+	public GameLogic(String mapFile, String roomName, Map.Storage storage)
+			throws FileNotFoundException, ParseException {
+		this(new Map(mapFile, storage), roomName, new Random());
+	}
+
+	/**
+	 * Constructor for a game on a map that has already been loaded, e.g. by
+	 * the Simulator.
+	 * 
+	 * @param map
+	 *            The map to play on, which the game will change.
+	 * @param roomName
+	 *            The name players use to JOIN this game.
+	 * @param random
+	 *            Picks the players' start locations, so a seeded generator
+	 *            starts them in the same places every time.
+	 */
+	public GameLogic(Map map, String roomName, Random random) {
+		this.roomName = roomName;
+		this.map = map;
+		this.random = random;
 
 		// Check if there is enough gold to win
 		if (this.map.remainingGold() < this.map.getGoal()) {
@@ -35,6 +128,7 @@ public class GameLogic {
 		}
 
 		this.players = new ArrayList<Player>();
+		this.occupancy = OccupancyGrid.forMap(this.map);
 	}
 
 	/**
@@ -47,32 +141,95 @@ public class GameLogic {
 	 * @return the id of the player
 	 */
 	public int addPlayer(PlayerListener player) {
-		final int playerID = this.players.size();
-
-		this.players.add(new Player("Player " + playerID,
-				generateRandomStartLocation(), player));
+		// Players join on their own connection's thread
+		this.lock.lock();
+		try {
+			final int playerID = this.players.size();
+
+			final Location startLocation = generateRandomStartLocation();
+			this.players.add(new Player("Player " + playerID, startLocation,
+					player, this.occupancy, playerID));
+			markChanged(startLocation);
+
+			if (this.players.size() == 1) {
+				startNewGame();
+			} else if (this.players.get(this.currentPlayer).isDead()) {
+				// Everyone else has left, so nobody was holding the turn
+				this.currentPlayer = playerID;
+				startTurn();
+			}
 
-		if (this.players.size() == 1) {
-			startNewGame();
+			return playerID;
+		} finally {
+			this.lock.unlock();
 		}
-
-		return playerID;
 	}
 	/**
 	 * Removes a player from the game. The player is killed within the game, but
 	 * the reference is held. This might need some changing for a network.
 	 */
 	public void removePlayer(int playerID) {
-		this.players.get(playerID).kill();
-		if (this.currentPlayer == playerID) {
-			// Advance turn to handle death on player's turn
-			advanceTurn(playerID);
+		this.lock.lock();
+		try {
+			markChanged(this.players.get(playerID).getLocation());
+			this.players.get(playerID).kill();
+			if (this.currentPlayer == playerID && anyPlayerAlive()) {
+				// Advance turn to handle death on player's turn
+				advanceTurn(playerID);
+			}
+		} finally {
+			this.lock.unlock();
 		}
 	}
 
+	/**
+	 * Makes every command for this game run on the given loop. This must be
+	 * set before any player is added.
+	 * 
+	 * @param eventLoop
+	 *            the loop that owns this game
+	 */
+	public void setEventLoop(GameEventLoop eventLoop) {
+		if (!this.players.isEmpty()) {
+			throw new IllegalStateException(
+					"the event loop must be set before players join");
+		}
+		this.eventLoop = eventLoop;
+	}
+
+	/**
+	 * @return the loop that owns this game, or null if commands run directly
+	 */
+	public GameEventLoop getEventLoop() {
+		return this.eventLoop;
+	}
+
+	/**
+	 * @return the name of the room this game is hosted in
+	 */
+	public String getRoomName() {
+		return this.roomName;
+	}
+
 	public String getPlayerName(int playerID) {
 		return this.players.get(playerID).getName();
 	}
+
+	/**
+	 * @return where the player is standing, e.g. for an AI player to plan
+	 *         from
+	 */
+	public Location getPlayerLocation(int playerID) {
+		assertPlayerExists(playerID);
+		return this.players.get(playerID).getLocation();
+	}
+
+	/**
+	 * @return true once a player has won, after which no one can act
+	 */
+	public boolean hasWinner() {
+		return this.playerWon;
+	}
 	/**
 	* Gives the user a list of commands to use in game
 	*/
@@ -142,48 +299,135 @@ public class GameLogic {
 	 * 
 	 * @return the part of the map that the player can currently see.
 	 */
-	public synchronized String clientLook(int playerID) {
-		assertPlayerExists(playerID);
+	public String clientLook(int playerID) {
+		this.lock.lock();
+		try {
+			assertPlayerExists(playerID);
+
+			// Render into the shared buffer, growing it for a longer look
+			final int distance = this.players.get(playerID).lookDistance();
+			final int length = lookReplyLength(distance);
+			if (this.lookBuffer.capacity() < length) {
+				this.lookBuffer = ByteBuffer.allocate(length);
+			}
+
+			this.lookBuffer.clear();
+			renderLook(playerID, distance, this.lookBuffer, true);
+
+			return new String(this.lookBuffer.array(), 0,
+					this.lookBuffer.position(), StandardCharsets.ISO_8859_1);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Handles the client message LOOK, writing the reply straight into the
+	 * caller's buffer rather than building a String. This is how a whole
+	 * LOOKREPLY is sent.
+	 * 
+	 * @param reply
+	 *            the buffer to write the reply into. It must have at least
+	 *            lookReplyLength(getLookDistance(playerID)) bytes remaining.
+	 */
+	public void clientLook(int playerID, ByteBuffer reply) {
+		this.lock.lock();
+		try {
+			assertPlayerExists(playerID);
+			renderLook(playerID, this.players.get(playerID).lookDistance(),
+					reply, true);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Handles the client message LOOK for a user on WireProtocol frames,
+	 * writing just the cells, row by row without line separators, into the
+	 * frame being built.
+	 * 
+	 * @param cells
+	 *            the buffer to write the cells into. It must have at least
+	 *            side * side bytes remaining, where side is
+	 *            (2 * getLookDistance(playerID)) + 1.
+	 */
+	public void clientLookCells(int playerID, ByteBuffer cells) {
+		this.lock.lock();
+		try {
+			assertPlayerExists(playerID);
+			renderLook(playerID, this.players.get(playerID).lookDistance(),
+					cells, false);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return how far the player can see, which sets the size of their LOOK
+	 */
+	public int getLookDistance(int playerID) {
+		this.lock.lock();
+		try {
+			assertPlayerExists(playerID);
+			return this.players.get(playerID).lookDistance();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes in a look reply for the look distance
+	 */
+	public static int lookReplyLength(int distance) {
+		final int size = (2 * distance) + 1;
 
+		return (size <= 0) ? 0 : size * (size + LINE_SEPARATOR.length);
+	}
+
+	/**
+	 * Writes the grid the player can see, one row per line unless the
+	 * separators are left out for a frame. Nothing is allocated: the
+	 * visibility of each cell comes from a precomputed mask and the map,
+	 * occupancy grid and separator are read directly.
+	 */
+	private void renderLook(int playerID, int distance, ByteBuffer reply,
+			boolean separators) {
 		final Player player = this.players.get(playerID);
+		final boolean[] visible = Player.visibilityMask(distance);
+		final int size = (2 * distance) + 1;
+		final int firstCol = player.getLocation().getCol() - distance;
+		final int firstRow = player.getLocation().getRow() - distance;
 
-		// Work out how far the player can see
-		final int distance = player.lookDistance();
-		String lookReply = "";
 		// Iterate through the rows.
-		for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
-			String line = "";
+		for (int y = 0; y < size; y++) {
+			final int row = firstRow + y;
 
 			// Iterate through the columns.
-			for (int colOffset = -distance; colOffset <= distance; ++colOffset) {
-
-				// Work out the location
-				final Location location = player.getLocation().atOffset(
-						colOffset, rowOffset);
+			for (int x = 0; x < size; x++) {
+				final int col = firstCol + x;
 
-				char content = '?';
-				if (!player.canSeeTile(rowOffset, colOffset)) {
+				char content;
+				if (!visible[(y * size) + x]) {
 					// It's outside the FoV so we don't know what it is.
 					content = 'X';
-				} else if (!this.map.insideMap(location)) {
+				} else if (!this.map.insideMap(col, row)) {
 					// It's outside the map, so just call it a wall.
 					content = '#';
-				} else if (otherPlayerOnTile(location, playerID)) {
+				} else if (otherPlayerOnTile(col, row, playerID)) {
 					content = 'P';
 				} else {
 					// Look up and see what's on the map
-					content = this.map.getMapCell(location).toChar();
+					content = this.map.toChar(col, row);
 				}
 
-				// Add to the line
-				line += content;
+				reply.put((byte) content);
 			}
 
-			// Send a line of the look message
-			lookReply += line + System.getProperty("line.separator");
+			// End a line of the look message
+			if (separators) {
+				reply.put(LINE_SEPARATOR);
+			}
 		}
-		
-		return lookReply;
 	}
 
 	/**
@@ -197,39 +441,46 @@ public class GameLogic {
 	 * @return An indicator of the success or failure of the movement.
 	 * @throws CommandException
 	 */
-	public synchronized void clientMove(CompassDirection direction, int playerID)
+	public void clientMove(CompassDirection direction, int playerID)
 			throws CommandException {
-		assertPlayerExists(playerID);
+		this.lock.lock();
+		try {
+			assertPlayerExists(playerID);
 
-		ensureNoWinner();
-		assertPlayersTurn(playerID);
-		assertPlayerAP(playerID);
+			ensureNoWinner();
+			assertPlayersTurn(playerID);
+			assertPlayerAP(playerID);
 
-		final Player player = this.players.get(playerID);
+			final Player player = this.players.get(playerID);
 
-		// Work out where the move would take the player
-		final Location location = player.getLocation().atCompassDirection(
-				direction);
+			// Work out where the move would take the player
+			final Location location = player.getLocation().atCompassDirection(
+					direction);
 
-		// Ensure that the movement is within the bounds of the map and not
-		// into a wall
-		if (!this.map.insideMap(location)
-				|| !this.map.getMapCell(location).isWalkable()) {
-			throw new CommandException("can't move into a wall");
-		}
+			// Ensure that the movement is within the bounds of the map and not
+			// into a wall
+			if (!this.map.insideMap(location)
+					|| !this.map.isWalkable(location)) {
+				throw new CommandException("can't move into a wall");
+			}
 
-		if (otherPlayerOnTile(location, playerID)) {
-			throw new CommandException("can't move into another player");
-		}
+			if (otherPlayerOnTile(location, playerID)) {
+				throw new CommandException("can't move into another player");
+			}
 
-		// Costs one action point
-		player.decrementAp();
+			// Costs one action point
+			player.decrementAp();
 
-		// Move the player
-		player.setLocation(location);
-		this.players.get(playerID).apValue();
-		advanceTurn(playerID);
-		return;
+			// Move the player
+			markChanged(player.getLocation());
+			markChanged(location);
+			player.setLocation(location);
+			this.players.get(playerID).apValue();
+			advanceTurn(playerID);
+			return;
+		} finally {
+			this.lock.unlock();
+		}
 	}
 
 	/**
@@ -314,7 +565,9 @@ public class GameLogic {
 		}
 
 		player.giveItem(item);
-		playersTile.removeItem();
+		this.map.removeItem(player.getLocation().getCol(),
+				player.getLocation().getRow());
+		markChanged(player.getLocation());
 		this.players.get(playerID).apValue();
 		advanceTurn(playerID);
 	}
@@ -325,21 +578,91 @@ public class GameLogic {
 	 * @param message
 	 *            The message to be shouted
 	 */
-	public synchronized void clientShout(String message) {
-		for (final Player player : this.players) {
-			player.sendMessage(message);
+	public void clientShout(String message) {
+		// Every player is sent the same message, so it is only encoded once
+		final Broadcast shout = new Broadcast(message);
+
+		this.lock.lock();
+		try {
+			for (final Player player : this.players) {
+				// Players who have left may be playing in another room now
+				if (player.isDead()) {
+					continue;
+				}
+				player.sendMessage(shout);
 
+			}
+		} finally {
+			this.lock.unlock();
 		}
 	}
 
 	/**
-	 * Sends a change to all players of the game.
+	 * Sends a change to the players who can see a tile that has changed since
+	 * the last change was sent. Players who cannot see any of them have
+	 * nothing new to LOOK at, so are left alone, unless too many tiles have
+	 * changed to keep track of, when everybody is sent one.
 	 *
 	 */
-	public synchronized void clientChange() {
-		for (final Player player : this.players) {
-			player.sendChange();
+	public void clientChange() {
+		this.lock.lock();
+		try {
+			if (!this.everythingChanged && this.changedTiles.isEmpty()) {
+				return;
+			}
 
+			for (final Player player : this.players) {
+				// Players who have left may be playing in another room now
+				if (player.isDead()) {
+					continue;
+				}
+				if (this.everythingChanged) {
+					player.sendChange();
+					continue;
+				}
+				for (final Location tile : this.changedTiles) {
+					if (player.canSeeLocation(tile)) {
+						player.sendChange();
+						break;
+					}
+				}
+			}
+
+			this.changedTiles.clear();
+			this.everythingChanged = false;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that what is on a tile has changed, so that the next CHANGE is
+	 * sent to the players who can see it. Past MAX_CHANGED_TILES the tiles are
+	 * forgotten and the next CHANGE goes to everybody, so a game nobody sends
+	 * a CHANGE for, such as one being benchmarked, does not grow the list
+	 * forever.
+	 * 
+	 * @param location
+	 *            the tile that changed
+	 */
+	private void markChanged(Location location) {
+		if (!this.map.insideMap(location)) {
+			return;
+		}
+
+		this.lock.lock();
+		try {
+			if (this.everythingChanged) {
+				return;
+			}
+			if (this.changedTiles.size() >= MAX_CHANGED_TILES) {
+				this.changedTiles.clear();
+				this.everythingChanged = true;
+				return;
+			}
+			this.changedTiles.add(location);
+		} finally {
+			this.lock.unlock();
 		}
 	}
 
@@ -384,10 +707,16 @@ public class GameLogic {
 			throw new CommandException("invalid position");
 		}
 
-		if (!this.map.getMapCell(location).isWalkable()) {
+		if (!this.map.isWalkable(location)) {
 			throw new CommandException("cannot walk on this tile");
 		}
 
+		if (otherPlayerOnTile(location, playerID)) {
+			throw new CommandException("another player is on this tile");
+		}
+
+		markChanged(this.players.get(playerID).getLocation());
+		markChanged(location);
 		this.players.get(playerID).setLocation(location);
 	}
 
@@ -401,62 +730,71 @@ public class GameLogic {
 	}
 
 	/**
-	 * Generates a randomised start location
+	 * @return the distance fields for this game's map, made the first time
+	 *         they are asked for so a game without AI players never has them
+	 */
+	public Navigation getNavigation() {
+		this.lock.lock();
+		try {
+			if (this.navigation == null) {
+				this.navigation = Navigation.forMap(this.map);
+			}
+			return this.navigation;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Picks a random free start location from the occupancy grid
 	 * 
 	 * @return a random location where a player can start
 	 */
 	private Location generateRandomStartLocation() {
-		if (!atLeastOneNonWallLocation()) {
+		final Location location = this.occupancy.randomFreeCell(this.random);
+		if (location == null) {
 			throw new IllegalStateException(
 					"There is no free tile available for the player to be placed");
 		}
 
-		while (true) {
-			// Generate a random location
-			final Random random = new Random();
-			final int randomRow = random.nextInt(this.map.getMapHeight());
-			final int randomCol = random.nextInt(this.map.getMapWidth());
-
-			final Location location = new Location(randomCol, randomRow);
-
-			if (this.map.getMapCell(location).isWalkable()
-					&& !otherPlayerOnTile(location, -1)) {
-				// If it's not a wall then we can put them there
-				return location;
-			}
-		}
+		return location;
 	}
 
 	/**
-	 * Searches a possible tile to use by the player, i.e. non-wall. The map is
-	 * traversed from (0,0) to (maxY,MaxX).
+	 * Checks there is someone left to pass the turn to. Without this the
+	 * turn would be advanced forever once the last player leaves.
 	 * 
-	 * @return true if there is at least one non-wall location, false otherwise
+	 * @return true if at least one player is alive
 	 */
-	private boolean atLeastOneNonWallLocation() {
-		for (int x = 0; x < this.map.getMapWidth(); x++) {
-			for (int y = 0; y < this.map.getMapHeight(); y++) {
-
-				if (this.map.getMapCell(new Location(x, y)).isWalkable()) {
-					// If it's not a wall then we can put them there
-					return true;
-				}
+	private boolean anyPlayerAlive() {
+		for (final Player player : this.players) {
+			if (!player.isDead()) {
+				return true;
 			}
 		}
 
 		return false;
 	}
 
+	/**
+	 * Checks the occupancy grid for a player other than the given one.
+	 * 
+	 * @param location
+	 *            the tile to check
+	 * @param currentPlayerID
+	 *            the player to ignore, or -1 to check for anybody
+	 * @return true if another player is standing on the tile
+	 */
 	private boolean otherPlayerOnTile(Location location, int currentPlayerID) {
-		for (int otherPlayerID = 0; otherPlayerID < this.players.size(); otherPlayerID++) {
-			if ((otherPlayerID != currentPlayerID)
-					&& this.players.get(otherPlayerID).getLocation()
-							.equals(location)) {
-				return true;
-			}
-		}
+		return otherPlayerOnTile(location.getCol(), location.getRow(),
+				currentPlayerID);
+	}
 
-		return false;
+	private boolean otherPlayerOnTile(int col, int row, int currentPlayerID) {
+		final int occupant = this.occupancy.playerAt(col, row);
+
+		return (occupant != OccupancyGrid.EMPTY)
+				&& (occupant != currentPlayerID);
 	}
 
 	/**
@@ -526,8 +864,9 @@ public class GameLogic {
 	private void advanceTurn(int playerID) {
 		final Player player = this.players.get(playerID);
 
-		// Check if the player has won
-		if ((player.getGold() >= this.map.getGoal())
+		// Check if the player has won. A player who has just left is off the
+		// map, so cannot be on an exit.
+		if (!player.isDead() && (player.getGold() >= this.map.getGoal())
 				&& (this.map.getMapCell(player.getLocation()).isExit())) {
 
 			// Player should not be able to move if they have won
@@ -0,0 +1,139 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Counts how long things took, e.g. commands sent by the LoadGenerator, so
+ * percentiles can be read off without keeping every sample.
+ *
+ * Times are kept in microseconds. Below 32us each microsecond has its own
+ * bucket; above that every power of two is split into 32 buckets, so a
+ * percentile is never more than about 3% out. Any number of threads may record
+ * at once.
+ */
+public class LatencyHistogram {
+	// Each power of two is split into 2^SUB_BUCKET_BITS buckets
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Enough buckets for any positive long
+	private static final int BUCKETS = SUB_BUCKETS
+			+ ((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records one sample
+	 *
+	 * @param nanos
+	 *            how long it took, in nanoseconds
+	 */
+	public void record(long nanos) {
+		final long micros = Math.max(0, nanos / 1000);
+		this.counts.incrementAndGet(bucketOf(micros));
+		this.maxMicros.accumulate(micros);
+	}
+
+	/**
+	 * @return the counts so far. Samples recorded while the snapshot is taken
+	 *         may or may not be in it.
+	 */
+	public Snapshot snapshot() {
+		final long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = this.counts.get(i);
+		}
+		return new Snapshot(copy, this.maxMicros.get());
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + (shift * SUB_BUCKETS) + sub;
+	}
+
+	/**
+	 * @return the largest time in microseconds that falls in the bucket
+	 */
+	private static long highestIn(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		final int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		final long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * The counts of a histogram at one moment
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long maxMicros;
+		private final long total;
+
+		private Snapshot(long[] counts, long maxMicros) {
+			this.counts = counts;
+			this.maxMicros = maxMicros;
+
+			long total = 0;
+			for (final long count : counts) {
+				total += count;
+			}
+			this.total = total;
+		}
+
+		/**
+		 * @return the samples recorded since an earlier snapshot of the same
+		 *         histogram. Its maximum is the maximum of the whole histogram.
+		 */
+		public Snapshot since(Snapshot earlier) {
+			final long[] difference = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				difference[i] = this.counts[i] - earlier.counts[i];
+			}
+			return new Snapshot(difference, this.maxMicros);
+		}
+
+		/**
+		 * @return the number of samples
+		 */
+		public long count() {
+			return this.total;
+		}
+
+		/**
+		 * @return the longest sample in microseconds
+		 */
+		public long maxMicros() {
+			return this.maxMicros;
+		}
+
+		/**
+		 * @param percentile
+		 *            e.g. 99.9
+		 * @return the time in microseconds that the given percentage of
+		 *         samples took no longer than, or 0 if there are none
+		 */
+		public long percentileMicros(double percentile) {
+			if (this.total == 0) {
+				return 0;
+			}
+
+			final long rank = Math.max(1,
+					(long) Math.ceil((percentile / 100.0) * this.total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += this.counts[i];
+				if (seen >= rank) {
+					return Math.min(highestIn(i), this.maxMicros);
+				}
+			}
+			return this.maxMicros;
+		}
+	}
+}
@@ -0,0 +1,496 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Plays a Server with thousands of simulated players at once, to find how many
+ * it can take before it slows down.
+ *
+ * Each session is a connection on its own virtual thread. It waits for a think
+ * time, sends a command picked from the command mix and waits for the answer,
+ * over and over, timing each command from sending it to reading the answer.
+ * Sessions are started gradually over the ramp-up, and every report interval
+ * the throughput and latency percentiles of that interval are printed, so the
+ * point where latency climbs shows how many sessions the server can hold.
+ *
+ * The sessions only speak the protocol; unlike Bot they do not try to win.
+ * A FAIL from the game, e.g. for moving into a wall or out of turn, is a
+ * normal answer and is counted as a failure, not an error. Errors are
+ * connections that could not be made, that broke or that timed out.
+ */
+public class LoadGenerator {
+	/**
+	 * The commands a session can send, and the replies that answer them
+	 */
+	private enum Command {
+		LOOK, MOVE, PICKUP, ATTACK, HELLO;
+
+		private static final String DIRECTIONS = "NESW";
+
+		private String line(Random random) {
+			switch (this) {
+				case MOVE :
+				case ATTACK :
+					return name() + " " + DIRECTIONS.charAt(random.nextInt(4));
+				case HELLO :
+					return "HELLO load" + random.nextInt(1000000);
+				default :
+					return name();
+			}
+		}
+
+		/**
+		 * @return true if the line of text is this command's answer
+		 */
+		private boolean answeredBy(String reply) {
+			switch (this) {
+				case LOOK :
+					return reply.equals("LOOKREPLY")
+							|| reply.startsWith("LOOKDELTA");
+				case HELLO :
+					return reply.startsWith("HELLO ");
+				default :
+					return reply.equals("SUCCESS");
+			}
+		}
+
+		/**
+		 * @return true if the binary frame is this command's answer
+		 */
+		private boolean answeredBy(byte opcode) {
+			switch (this) {
+				case LOOK :
+					return opcode == WireProtocol.LOOKREPLY;
+				case HELLO :
+					return false;
+				default :
+					return opcode == WireProtocol.SUCCESS;
+			}
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final int sessions;
+	private final long rampUpMillis;
+	private final long durationMillis;
+	private final long thinkMillis;
+	private final long timeoutMillis;
+	private final long reportMillis;
+	private final boolean binaryProtocol;
+
+	// The command mix, each command appearing as many times as its weight
+	private final Command[] mix;
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder connectFailures = new LongAdder();
+	private final LongAdder disconnects = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final AtomicInteger activeSessions = new AtomicInteger();
+
+	// When the sessions stop sending commands, in System.nanoTime
+	private volatile long deadline;
+
+	public LoadGenerator(String host, int port, int sessions,
+			long rampUpMillis, long durationMillis, long thinkMillis,
+			long timeoutMillis, long reportMillis, boolean binaryProtocol,
+			String mix) {
+		this.host = host;
+		this.port = port;
+		this.sessions = sessions;
+		this.rampUpMillis = rampUpMillis;
+		this.durationMillis = durationMillis;
+		this.thinkMillis = thinkMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.reportMillis = reportMillis;
+		this.binaryProtocol = binaryProtocol;
+		this.mix = parseMix(mix);
+	}
+
+	/**
+	 * Parses a command mix, e.g. "LOOK=50,MOVE=40,PICKUP=10"
+	 */
+	private static Command[] parseMix(String mix) {
+		final List<Command> commands = new ArrayList<Command>();
+		for (final String entry : mix.split(",")) {
+			final String[] parts = entry.trim().split("=", 2);
+			final Command command = Command.valueOf(parts[0].toUpperCase());
+			final int weight = (parts.length == 2)
+					? Integer.parseInt(parts[1])
+					: 1;
+			if (weight < 0) {
+				throw new IllegalArgumentException("negative weight for "
+						+ command);
+			}
+			for (int i = 0; i < weight; i++) {
+				commands.add(command);
+			}
+		}
+		if (commands.isEmpty()) {
+			throw new IllegalArgumentException("the command mix is empty");
+		}
+		return commands.toArray(new Command[0]);
+	}
+
+	/**
+	 * Runs the sessions for the ramp-up and the duration, printing a report
+	 * every interval and a summary at the end
+	 */
+	public void run() throws InterruptedException {
+		final long start = System.nanoTime();
+		this.deadline = start
+				+ TimeUnit.MILLISECONDS.toNanos(this.rampUpMillis
+						+ this.durationMillis);
+
+		System.out.println("Starting " + this.sessions + " sessions against "
+				+ this.host + ":" + this.port + " over " + this.rampUpMillis
+				+ "ms, running for " + this.durationMillis + "ms after that");
+		System.out.println("  time  sessions     cmd/s      p50      p99     p999   fail%   errors");
+
+		final ExecutorService executor = Executors
+				.newVirtualThreadPerTaskExecutor();
+		final Thread starter = Thread.ofVirtual().start(() -> {
+			for (int i = 0; i < this.sessions; i++) {
+				// Spread the sessions evenly over the ramp-up
+				final long startAt = start
+						+ TimeUnit.MILLISECONDS.toNanos(this.rampUpMillis * i
+								/ this.sessions);
+				if (!sleepUntil(startAt)) {
+					return;
+				}
+				executor.execute(this::runSession);
+			}
+		});
+
+		LatencyHistogram.Snapshot last = this.latencies.snapshot();
+		long lastFailures = 0;
+		long lastTime = start;
+		while (System.nanoTime() < this.deadline) {
+			sleepUntil(Math.min(this.deadline,
+					lastTime + TimeUnit.MILLISECONDS.toNanos(this.reportMillis)));
+
+			final long now = System.nanoTime();
+			final LatencyHistogram.Snapshot current = this.latencies
+					.snapshot();
+			final long failuresNow = this.failures.sum();
+			report(now - start, current.since(last), failuresNow
+					- lastFailures, now - lastTime);
+
+			last = current;
+			lastFailures = failuresNow;
+			lastTime = now;
+		}
+
+		starter.join();
+		executor.shutdown();
+		// Each session finishes the command it is waiting on
+		executor.awaitTermination(this.timeoutMillis + 1000,
+				TimeUnit.MILLISECONDS);
+		executor.shutdownNow();
+
+		summarise(System.nanoTime() - start);
+	}
+
+	/**
+	 * Plays one session until the deadline
+	 */
+	private void runSession() {
+		final Random random = ThreadLocalRandom.current();
+
+		final Socket socket;
+		try {
+			socket = new Socket(this.host, this.port);
+		} catch (final IOException e) {
+			this.connectFailures.increment();
+			return;
+		}
+
+		this.activeSessions.incrementAndGet();
+		try (socket) {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout((int) this.timeoutMillis);
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			final OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream());
+
+			if (this.binaryProtocol) {
+				switchToFrames(in, out);
+			}
+
+			while (true) {
+				// Think for up to twice the think time, so sessions drift apart
+				final long think = (this.thinkMillis == 0)
+						? 0
+						: random.nextLong(2 * this.thinkMillis + 1);
+				if (!sleepUntil(Math.min(this.deadline, System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(think)))
+						|| (System.nanoTime() >= this.deadline)) {
+					return;
+				}
+
+				final Command command = this.mix[random
+						.nextInt(this.mix.length)];
+				final String line = command.line(random);
+
+				final long sent = System.nanoTime();
+				send(out, line);
+				final boolean succeeded = this.binaryProtocol
+						? awaitFrame(in, command)
+						: awaitLine(in, command);
+				this.latencies.record(System.nanoTime() - sent);
+
+				if (!succeeded) {
+					this.failures.increment();
+				}
+			}
+		} catch (final SocketTimeoutException e) {
+			this.timeouts.increment();
+		} catch (final IOException e) {
+			this.disconnects.increment();
+		} finally {
+			this.activeSessions.decrementAndGet();
+		}
+	}
+
+	private void send(OutputStream out, String line) throws IOException {
+		if (this.binaryProtocol) {
+			out.write(WireProtocol.encodeCommand(line));
+		} else {
+			out.write((line + System.lineSeparator()).getBytes(Charset
+					.defaultCharset()));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Asks the server for binary frames, and reads the text that comes before
+	 * its answer
+	 */
+	private static void switchToFrames(DataInputStream in, OutputStream out)
+			throws IOException {
+		out.write((WireProtocol.SWITCH_COMMAND + System.lineSeparator())
+				.getBytes(Charset.defaultCharset()));
+		out.flush();
+
+		String line;
+		while ((line = WireProtocol.readLine(in)) != null) {
+			if (line.equals(WireProtocol.SWITCH_COMMAND)) {
+				return;
+			}
+			if (line.startsWith("FAIL")) {
+				throw new IOException("the server refused binary frames: "
+						+ line);
+			}
+		}
+		throw new EOFException();
+	}
+
+	/**
+	 * Reads lines, skipping anything the server sent unasked, until the
+	 * command is answered
+	 *
+	 * @return true for the command's answer, false for a FAIL
+	 */
+	private static boolean awaitLine(DataInputStream in, Command command)
+			throws IOException {
+		String line;
+		while ((line = WireProtocol.readLine(in)) != null) {
+			if (line.startsWith("FAIL")) {
+				return false;
+			}
+			if (command.answeredBy(line)) {
+				if (line.equals("LOOKREPLY")) {
+					skipGrid(in);
+				}
+				return true;
+			}
+		}
+		throw new EOFException();
+	}
+
+	/**
+	 * As awaitLine, for binary frames
+	 */
+	private static boolean awaitFrame(DataInputStream in, Command command)
+			throws IOException {
+		while (true) {
+			final byte[] body = WireProtocol.readFrame(in);
+			if (body.length == 0) {
+				continue;
+			}
+			if (body[0] == WireProtocol.FAIL) {
+				return false;
+			}
+			if (command.answeredBy(body[0])) {
+				return true;
+			}
+			if ((body[0] == WireProtocol.TEXT)
+					&& command.answeredBy(WireProtocol.payloadText(body))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the rows of a LOOKREPLY, which has as many rows as columns
+	 */
+	private static void skipGrid(DataInputStream in) throws IOException {
+		final String first = WireProtocol.readLine(in);
+		if (first == null) {
+			throw new EOFException();
+		}
+		for (int row = 1; row < first.length(); row++) {
+			if (WireProtocol.readLine(in) == null) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Sleeps until the given System.nanoTime
+	 *
+	 * @return false if interrupted
+	 */
+	private static boolean sleepUntil(long nanoTime) {
+		long remaining;
+		while ((remaining = nanoTime - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(remaining);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long errors() {
+		return this.connectFailures.sum() + this.disconnects.sum()
+				+ this.timeouts.sum();
+	}
+
+	private void report(long elapsedNanos, LatencyHistogram.Snapshot interval,
+			long intervalFailures, long intervalNanos) {
+		final double seconds = intervalNanos / 1e9;
+		System.out.println(String.format(
+				"%5ds  %8d  %8.1f  %7s  %7s  %7s  %6.2f  %7d",
+				TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+				this.activeSessions.get(), interval.count() / seconds,
+				millis(interval.percentileMicros(50)),
+				millis(interval.percentileMicros(99)),
+				millis(interval.percentileMicros(99.9)),
+				percent(intervalFailures, interval.count()), errors()));
+	}
+
+	private void summarise(long elapsedNanos) {
+		final LatencyHistogram.Snapshot all = this.latencies.snapshot();
+		final double seconds = elapsedNanos / 1e9;
+		final long attempts = all.count() + this.disconnects.sum()
+				+ this.timeouts.sum();
+
+		System.out.println();
+		System.out.println("Commands:    " + all.count() + " in "
+				+ String.format("%.1f", seconds) + "s, "
+				+ String.format("%.1f", all.count() / seconds) + " cmd/s");
+		System.out.println("Latency:     p50 " + millis(all.percentileMicros(50))
+				+ ", p99 " + millis(all.percentileMicros(99)) + ", p999 "
+				+ millis(all.percentileMicros(99.9)) + ", max "
+				+ millis(all.maxMicros()));
+		System.out.println("Failures:    " + this.failures.sum() + " ("
+				+ String.format("%.2f", percent(this.failures.sum(), all.count()))
+				+ "% of commands were refused by the game)");
+		System.out.println("Errors:      " + String.format("%.2f",
+				percent(this.disconnects.sum() + this.timeouts.sum(), attempts))
+				+ "% of commands; " + this.connectFailures.sum()
+				+ " connections refused, " + this.disconnects.sum()
+				+ " dropped, " + this.timeouts.sum() + " timed out");
+	}
+
+	private static String millis(long micros) {
+		return String.format("%.2fms", micros / 1000.0);
+	}
+
+	private static double percent(long part, long whole) {
+		return (whole == 0) ? 0 : (100.0 * part) / whole;
+	}
+
+	/**
+	 * Options, each followed by a value:
+	 *
+	 * -host and -port of the server, localhost:54879 by default.
+	 * -sessions to run, 1000 by default.
+	 * -rampup, the milliseconds over which the sessions are started, 10000.
+	 * -duration, the milliseconds to run for after the ramp-up, 60000.
+	 * -think, the average milliseconds between a session's commands, 500.
+	 * -timeout, the milliseconds to wait for an answer, 5000.
+	 * -report, the milliseconds between reports, 5000.
+	 * -mix, the commands to send and their weights, "LOOK=50,MOVE=40,PICKUP=10".
+	 * The commands are LOOK, MOVE, PICKUP, ATTACK and HELLO.
+	 *
+	 * -binary, on its own, speaks the binary protocol.
+	 *
+	 * The server should use -nio or -virtual to hold thousands of sessions, and
+	 * -rooms so they are not all waiting on one player's turn.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		String host = "localhost";
+		int port = 54879;
+		int sessions = 1000;
+		long rampUpMillis = 10000;
+		long durationMillis = 60000;
+		long thinkMillis = 500;
+		long timeoutMillis = 5000;
+		long reportMillis = 5000;
+		boolean binaryProtocol = false;
+		String mix = "LOOK=50,MOVE=40,PICKUP=10";
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-binary")) {
+				binaryProtocol = true;
+			} else if (i + 1 >= args.length) {
+				throw new IllegalArgumentException(args[i] + " needs a value");
+			} else if (args[i].equals("-host")) {
+				host = args[++i];
+			} else if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-sessions")) {
+				sessions = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-rampup")) {
+				rampUpMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-duration")) {
+				durationMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-think")) {
+				thinkMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-timeout")) {
+				timeoutMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-report")) {
+				reportMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-mix")) {
+				mix = args[++i];
+			} else {
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		new LoadGenerator(host, port, sessions, rampUpMillis, durationMillis,
+				thinkMillis, timeoutMillis, reportMillis, binaryProtocol, mix)
+				.run();
+	}
+}
@@ -0,0 +1,269 @@
+import java.io.FileNotFoundException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Hosts many independent games, or rooms, behind one server.
+ * <p>
+ * Every room is its own GameLogic on its own copy of the same map. A text map file is read once, when the lobby is
+ * created, and each new room parses its copy from those lines; a binary map is mapped by each room. New players are matched into the first room with
+ * space, or a new room is opened for them. Players can also JOIN a room by name, which creates it if it does not exist.
+ * A room is closed once the last player has left it.
+ * <p>
+ * If the lobby is given an executor, each room gets its own GameEventLoop on it, so a room's commands are run one at a
+ * time by whichever executor thread holds the room's slot.
+ * <p>
+ * A lobby can also wrap a single existing game, which is how the server behaves when rooms are not enabled.
+ * <p>
+ * Rooms can be given AI opponents, which join when the first player arrives and are taken out when the last one leaves.
+ * They do not count towards the room's capacity.
+ *
+ * @Author Daniel Jenkyn
+ */
+public class Lobby {
+    // The map every room is played on, null if this lobby wraps a single game
+    private final String mapFile;
+
+    // How each room stores the cells of its map
+    private final Map.Storage mapStorage;
+
+    // The lines of a text map, read once for every room, null for a binary map or a single game
+    private final List<String> mapLines;
+
+    // The number of players matched or allowed into a room
+    private final int roomCapacity;
+
+    // The threads that run the rooms' event loops, null if commands run on the session threads
+    private final Executor gameExecutor;
+
+    private final LinkedHashMap<String, GameLogic> rooms = new LinkedHashMap<String, GameLogic>();
+
+    // How many sessions are currently in each room
+    private final HashMap<GameLogic, Integer> occupancy = new HashMap<GameLogic, Integer>();
+
+    // The AI players added to each room when its first player arrives
+    private int aiPlayers = 0;
+    private final HashMap<GameLogic, List<AiPlayer>> aiOpponents = new HashMap<GameLogic, List<AiPlayer>>();
+
+    private int nextRoomNumber = 0;
+
+    /**
+     * Constructs a lobby that opens rooms on the given map. The map is read and the first room opened up front, so that
+     * a bad map file is reported at startup rather than when the first player arrives.
+     *
+     * @param mapFile      the map every room is played on
+     * @param roomCapacity the number of players in a room
+     */
+    public Lobby(String mapFile, int roomCapacity) throws FileNotFoundException, ParseException {
+        this(mapFile, roomCapacity, null);
+    }
+
+    /**
+     * Constructs a lobby whose rooms each run their commands on an event loop.
+     *
+     * @param mapFile      the map every room is played on
+     * @param roomCapacity the number of players in a room
+     * @param gameExecutor the threads shared by the rooms' event loops
+     */
+    public Lobby(String mapFile, int roomCapacity, Executor gameExecutor) throws FileNotFoundException, ParseException {
+        this(mapFile, Map.Storage.AUTO, roomCapacity, gameExecutor);
+    }
+
+    /**
+     * Constructs a lobby whose rooms store their maps in the given way, e.g. CHUNKED for a binary map too big to hold
+     * in memory once per room.
+     *
+     * @param mapFile      the map every room is played on
+     * @param mapStorage   how each room stores the cells of its map
+     * @param roomCapacity the number of players in a room
+     * @param gameExecutor the threads shared by the rooms' event loops, or null
+     */
+    public Lobby(String mapFile, Map.Storage mapStorage, int roomCapacity, Executor gameExecutor)
+            throws FileNotFoundException, ParseException {
+        if (roomCapacity < 1) {
+            throw new IllegalArgumentException("a room must hold at least one player");
+        }
+        this.mapFile = mapFile;
+        this.mapStorage = mapStorage;
+        this.mapLines = Map.isBinaryMap(mapFile) ? null : Map.readFile(mapFile);
+        this.roomCapacity = roomCapacity;
+        this.gameExecutor = gameExecutor;
+
+        openRoom(nextRoomName());
+    }
+
+    /**
+     * Constructs a lobby with a single room that is never closed and has no limit on players.
+     *
+     * @param game the only game in the lobby
+     */
+    public Lobby(GameLogic game) {
+        this.mapFile = null;
+        this.mapStorage = null;
+        this.mapLines = null;
+        this.roomCapacity = Integer.MAX_VALUE;
+        this.gameExecutor = null;
+
+        rooms.put(game.getRoomName(), game);
+        occupancy.put(game, 0);
+    }
+
+    /**
+     * Finds a room with space for one more player, opening a new room if they are all full.
+     *
+     * @return the room the player has been matched into
+     */
+    public synchronized GameLogic matchRoom() {
+        for (GameLogic room : rooms.values()) {
+            if (occupancy.get(room) < roomCapacity) {
+                return enter(room);
+            }
+        }
+
+        try {
+            return enter(openRoom(nextRoomName()));
+        } catch (FileNotFoundException | ParseException e) {
+            // The map was loaded successfully when the lobby was created
+            throw new IllegalStateException("could not open a new room", e);
+        }
+    }
+
+    /**
+     * Puts a player into the named room, opening it if it does not exist yet.
+     *
+     * @param name the name of the room
+     * @return the room
+     * @throws CommandException if the room is full, or cannot be opened
+     */
+    public synchronized GameLogic joinRoom(String name) throws CommandException {
+        GameLogic room = rooms.get(name);
+
+        if (room == null) {
+            if (mapFile == null) {
+                throw new CommandException("no such room");
+            }
+            try {
+                room = openRoom(name);
+            } catch (FileNotFoundException | ParseException e) {
+                throw new CommandException("could not open room " + name);
+            }
+        }
+
+        if (occupancy.get(room) >= roomCapacity) {
+            throw new CommandException("room is full");
+        }
+
+        return enter(room);
+    }
+
+    /**
+     * Sets how many AI players each room is given. They play on the room's event loop, so every room must have one.
+     *
+     * @param count the number of AI opponents per room
+     */
+    public synchronized void setAiPlayers(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("there cannot be fewer than no AI players");
+        }
+        this.aiPlayers = count;
+    }
+
+    /**
+     * Records that a player has been added to a room's game, giving the room its AI opponents if it has none yet. This
+     * must be called on the thread that owns the room, as it adds the AI players to the game there, and after the
+     * player is added, so the AI players cannot play on their own before anybody is there.
+     *
+     * @param room the room the player was added to
+     */
+    public synchronized void playerAdded(GameLogic room) {
+        if (aiPlayers == 0 || aiOpponents.containsKey(room)) {
+            return;
+        }
+
+        GameEventLoop loop = room.getEventLoop();
+        if (loop == null) {
+            throw new IllegalStateException("AI players need the room to have an event loop");
+        }
+
+        List<AiPlayer> opponents = new ArrayList<AiPlayer>(aiPlayers);
+        for (int i = 0; i < aiPlayers; i++) {
+            AiPlayer opponent = new AiPlayer(room, loop);
+            opponent.join();
+            opponents.add(opponent);
+        }
+        aiOpponents.put(room, opponents);
+    }
+
+    /**
+     * Records that a player has left a room, closing the room if it is now empty. The room's AI players are taken out
+     * once the last player has gone, so this is called on the thread that owns the room.
+     *
+     * @param room the room the player was in
+     */
+    public synchronized void leaveRoom(GameLogic room) {
+        Integer count = occupancy.get(room);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            occupancy.put(room, count - 1);
+            return;
+        }
+
+        // Nobody is left to play against. The next player to arrive gets new AI opponents.
+        List<AiPlayer> opponents = aiOpponents.remove(room);
+        if (opponents != null) {
+            for (AiPlayer opponent : opponents) {
+                opponent.leave();
+            }
+        }
+
+        if (mapFile == null) {
+            // The only game is kept open for the next player
+            occupancy.put(room, 0);
+        } else {
+            occupancy.remove(room);
+            rooms.remove(room.getRoomName());
+        }
+    }
+
+    /**
+     * @return the number of rooms that are open
+     */
+    public synchronized int roomCount() {
+        return rooms.size();
+    }
+
+    private GameLogic enter(GameLogic room) {
+        occupancy.put(room, occupancy.get(room) + 1);
+        return room;
+    }
+
+    private GameLogic openRoom(String name) throws FileNotFoundException, ParseException {
+        Map map = (mapLines != null) ? new Map(mapLines, mapStorage) : new Map(mapFile, mapStorage);
+        GameLogic room = new GameLogic(map, name, new Random());
+        if (gameExecutor != null) {
+            room.setEventLoop(new GameEventLoop(gameExecutor));
+        }
+        rooms.put(name, room);
+        occupancy.put(room, 0);
+        return room;
+    }
+
+    /**
+     * @return a room name that is not in use
+     */
+    private String nextRoomName() {
+        String name;
+        do {
+            name = "room" + nextRoomNumber++;
+        } while (rooms.containsKey(name));
+        return name;
+    }
+}
@@ -1,9 +1,23 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 
@@ -11,16 +25,42 @@ import java.util.Scanner;
  * Class containing the map used by the game engine. Allows for reading in ASCII
  * art maps from a file, or just using the default map.
  * 
+ * The cells are kept in a MapCells store. Large maps are packed a byte per
+ * cell rather than held as a Tile object per cell.
+ * 
+ * The map counts its items as it is loaded, and updates the count as items
+ * are picked up, so asking how much gold is left never has to scan the map.
+ * The items in a square region are only counted the first time somebody asks
+ * about that region, so a chunked map is never read into memory to count them.
+ * 
+ * A map can also be compiled to a binary file (see MapCompiler), which is
+ * memory mapped rather than parsed when it is loaded. The binary format is
+ * 
+ * "DODM", name length (short), name (UTF-8), goal (int), width (int),
+ * height (int), then width * height cells packed as by PackedCells.
+ * 
  * You are not responsible for making this more robust - you are only required
  * to perform error checking on the extra code that you write to network the
  * client and server.
  */
 public class Map {
+	/**
+	 * How the cells of the map are stored. AUTO keeps small maps as Tiles and
+	 * packs large ones. CHUNKED only keeps recently used regions of a binary
+	 * map in memory, for maps too big to hold at all.
+	 */
+	public enum Storage {
+		TILES, PACKED, CHUNKED, AUTO
+	}
+
+	// Maps with more cells than this are packed when the storage is AUTO
+	private static final int PACKED_THRESHOLD = 256 * 256;
+
 	// The name of the map
 	private String name;
 
-	// The tiles of the map, stored in row-major order, i.e. [row][col]
-	private Tile map[][];
+	// The cells of the map
+	private MapCells map;
 
 	// The number of gold required to win
 	private int goal;
@@ -33,6 +73,28 @@ public class Map {
 	// Minimum number of lines
 	private static final int MINLINES = 3;
 
+	// The first bytes of a binary map file
+	private static final byte[] BINARY_MAGIC = { 'D', 'O', 'D', 'M' };
+
+	// The width and height of a region whose items are counted together. They
+	// match the chunks of a chunked map, so counting one reads one chunk.
+	private static final int REGION_SIZE = ChunkedCells.REGION_SIZE;
+
+	// The item characters, indexing the counts below
+	private static final String ITEM_CHARS = "AGHLS";
+
+	// Items left on the map, by kind
+	private int[] itemCounts;
+
+	// Items left in each region that has been asked about, by kind
+	private final HashMap<Long, int[]> regionItemCounts = new HashMap<Long, int[]>();
+
+	// Guards both counts, as items can be picked up while others read them
+	private final Object countsLock = new Object();
+
+	// Told whenever an item is picked up
+	private final List<MapListener> listeners = new CopyOnWriteArrayList<MapListener>();
+
 	/**
 	 * Creates a map from the file specified. Note that this is not robust...
 	 * 
@@ -42,8 +104,72 @@ public class Map {
 	 * @throws FileNotFoundException
 	 */
 	public Map(String filename) throws ParseException, FileNotFoundException {
-		final List<String> lines = readFile(filename);
+		this(filename, Storage.AUTO);
+	}
 
+	/**
+	 * Creates a map from the file specified, choosing how its cells are stored.
+	 * 
+	 * @param filename
+	 *            The name of the file to load the map from
+	 * @param storage
+	 *            How to store the cells
+	 * @throws ParseException
+	 * @throws FileNotFoundException
+	 */
+	public Map(String filename, Storage storage) throws ParseException,
+			FileNotFoundException {
+		if (isBinaryMap(filename)) {
+			readBinaryMap(filename, storage);
+			this.itemCounts = countItems(this.map);
+			return;
+		}
+
+		if (storage == Storage.CHUNKED) {
+			throw new IllegalArgumentException(
+					"only binary maps can be loaded in chunks");
+		}
+
+		parse(readFile(filename), storage);
+	}
+
+	/**
+	 * Creates a map from the lines of a text map file that has already been
+	 * read, e.g. so that many games can be played on it without reading the
+	 * file for each one.
+	 * 
+	 * @param lines
+	 *            All the lines of text from the map file
+	 * @throws ParseException
+	 */
+	public Map(List<String> lines) throws ParseException {
+		this(lines, Storage.AUTO);
+	}
+
+	/**
+	 * Creates a map from the lines of a text map file that has already been
+	 * read, choosing how its cells are stored.
+	 * 
+	 * @param lines
+	 *            All the lines of text from the map file
+	 * @param storage
+	 *            How to store the cells, which cannot be CHUNKED
+	 * @throws ParseException
+	 */
+	public Map(List<String> lines, Storage storage) throws ParseException {
+		if (storage == Storage.CHUNKED) {
+			throw new IllegalArgumentException(
+					"only binary maps can be loaded in chunks");
+		}
+
+		parse(lines, storage);
+	}
+
+	/**
+	 * Reads the name, goal and cells of a text map
+	 */
+	private void parse(List<String> lines, Storage storage)
+			throws ParseException {
 		// Good programmers always check this...
 		if (lines.size() < MINLINES) {
 			throw new ParseException(
@@ -58,21 +184,22 @@ public class Map {
 		parseMapGoal(lines.get(GOALLINE));
 
 		// Read in the map data from the file
-		readMap(lines);
+		readMap(lines, storage);
+		this.itemCounts = countItems(this.map);
 	}
 
 	/**
 	 * @return The width of the map
 	 */
 	public int getMapWidth() {
-		return this.map[0].length;
+		return this.map.getWidth();
 	}
 
 	/**
 	 * @return The height of the map
 	 */
 	public int getMapHeight() {
-		return this.map.length;
+		return this.map.getHeight();
 	}
 
 	/**
@@ -81,7 +208,59 @@ public class Map {
 	 * @return the contents of the cell
 	 */
 	public Tile getMapCell(Location location) {
-		return this.map[location.getRow()][location.getCol()];
+		return getMapCell(location.getCol(), location.getRow());
+	}
+
+	/**
+	 * Returns the contents of the cell of the map at the column and row,
+	 * without needing a Location
+	 * 
+	 * @return the contents of the cell
+	 */
+	public Tile getMapCell(int col, int row) {
+		return this.map.getTile(col, row);
+	}
+
+	/**
+	 * Picks up the item on a cell, taking it off the counts of items left and
+	 * telling the listeners. Items must be removed through here rather than
+	 * through the cell's Tile, or the counts would go wrong.
+	 * 
+	 * @throws IllegalStateException
+	 *             if there is no item on the cell
+	 */
+	public void removeItem(int col, int row) {
+		final char item;
+		synchronized (this.countsLock) {
+			item = this.map.toChar(col, row);
+			this.map.removeItem(col, row);
+			itemRemoved(col, row, item);
+		}
+
+		for (final MapListener listener : this.listeners) {
+			listener.itemRemoved(col, row, item);
+		}
+	}
+
+	/**
+	 * @return the character shown for the cell in a LOOKREPLY
+	 */
+	public char toChar(int col, int row) {
+		return this.map.toChar(col, row);
+	}
+
+	/**
+	 * @return true if the cell at the location can be walked on
+	 */
+	public boolean isWalkable(Location location) {
+		return isWalkable(location.getCol(), location.getRow());
+	}
+
+	/**
+	 * @return true if the cell can be walked on
+	 */
+	public boolean isWalkable(int col, int row) {
+		return this.map.isWalkable(col, row);
 	}
 
 	/**
@@ -98,9 +277,17 @@ public class Map {
 	 * @return true if the location is valid, false otherwise
 	 */
 	public boolean insideMap(Location location) {
-		if ((location.getCol() < 0) || (location.getCol() >= getMapWidth())
-				|| (location.getRow() < 0)
-				|| (location.getRow() >= getMapHeight())) {
+		return insideMap(location.getCol(), location.getRow());
+	}
+
+	/**
+	 * Used to check if a column and row are inside the map
+	 * 
+	 * @return true if the cell is inside the map, false otherwise
+	 */
+	public boolean insideMap(int col, int row) {
+		if ((col < 0) || (col >= getMapWidth()) || (row < 0)
+				|| (row >= getMapHeight())) {
 			return false;
 		}
 		return true;
@@ -117,18 +304,252 @@ public class Map {
 	 * @return the amount of gold that has not been picked up on the map
 	 */
 	public int remainingGold() {
-		int goldCount = 0;
-
-		for (final Tile[] tileRow : this.map) {
-			for (final Tile tile : tileRow) {
-				if (tile.hasItem()) {
-					if (tile.getItem().getClass() == Gold.class) {
-						goldCount++;
-					}
+		return remainingItems('G');
+	}
+
+	/**
+	 * @param item
+	 *            the character of the kind of item, e.g. 'G' for gold
+	 * @return the number of that kind of item left on the map
+	 */
+	public int remainingItems(char item) {
+		final int kind = ITEM_CHARS.indexOf(item);
+		if (kind == -1) {
+			return 0;
+		}
+
+		synchronized (this.countsLock) {
+			return this.itemCounts[kind];
+		}
+	}
+
+	/**
+	 * Counts the items of one kind left in the region containing a cell. The
+	 * map is divided into REGION_SIZE square regions from (0,0).
+	 * 
+	 * @param item
+	 *            the character of the kind of item, e.g. 'G' for gold
+	 * @param col
+	 *            the column of any cell in the region
+	 * @param row
+	 *            the row of any cell in the region
+	 * @return the number of that kind of item left in the region
+	 */
+	public int remainingItemsInRegion(char item, int col, int row) {
+		final int kind = ITEM_CHARS.indexOf(item);
+		if ((kind == -1) || !insideMap(col, row)) {
+			return 0;
+		}
+
+		synchronized (this.countsLock) {
+			final Long region = regionKey(col, row);
+			int[] counts = this.regionItemCounts.get(region);
+			if (counts == null) {
+				counts = countRegionItems((col / REGION_SIZE) * REGION_SIZE,
+						(row / REGION_SIZE) * REGION_SIZE);
+				this.regionItemCounts.put(region, counts);
+			}
+			return counts[kind];
+		}
+	}
+
+	/**
+	 * @return true if only recently used regions of the map are kept in memory
+	 */
+	public boolean isChunked() {
+		return this.map instanceof ChunkedCells;
+	}
+
+	/**
+	 * Adds a listener to be told when items are picked up off the map
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(MapListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Writes the map in the binary format, so that it can be loaded without
+	 * parsing. Items that have been picked up are not written.
+	 * 
+	 * @param filename
+	 *            The name of the file to write
+	 * @throws IOException
+	 */
+	public void writeBinary(String filename) throws IOException {
+		final byte[] nameBytes = this.name.getBytes(StandardCharsets.UTF_8);
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(filename)))) {
+			out.write(BINARY_MAGIC);
+			out.writeShort(nameBytes.length);
+			out.write(nameBytes);
+			out.writeInt(this.goal);
+			out.writeInt(getMapWidth());
+			out.writeInt(getMapHeight());
+
+			for (int row = 0; row < getMapHeight(); row++) {
+				for (int col = 0; col < getMapWidth(); col++) {
+					out.writeByte(PackedCells.encode(this.map.toChar(col, row)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the items on a freshly loaded map. A chunked map's file is read
+	 * straight through rather than a region at a time through its cache.
+	 * 
+	 * @return the number of items of each kind, indexed as ITEM_CHARS
+	 */
+	private static int[] countItems(MapCells cells) {
+		if (cells instanceof ChunkedCells) {
+			return ((ChunkedCells) cells).countCells(ITEM_CHARS);
+		}
+
+		final int[] counts = new int[ITEM_CHARS.length()];
+		for (int row = 0; row < cells.getHeight(); row++) {
+			for (int col = 0; col < cells.getWidth(); col++) {
+				final int kind = ITEM_CHARS.indexOf(cells.toChar(col, row));
+				if (kind != -1) {
+					counts[kind]++;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Counts the items left in the region with the given top left cell
+	 */
+	private int[] countRegionItems(int firstCol, int firstRow) {
+		final int lastCol = Math.min(firstCol + REGION_SIZE, getMapWidth());
+		final int lastRow = Math.min(firstRow + REGION_SIZE, getMapHeight());
+
+		final int[] counts = new int[ITEM_CHARS.length()];
+		for (int row = firstRow; row < lastRow; row++) {
+			for (int col = firstCol; col < lastCol; col++) {
+				final int kind = ITEM_CHARS.indexOf(this.map.toChar(col, row));
+				if (kind != -1) {
+					counts[kind]++;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Takes a picked up item off the counts. Called holding countsLock.
+	 */
+	private void itemRemoved(int col, int row, char item) {
+		final int kind = ITEM_CHARS.indexOf(item);
+		if (kind == -1) {
+			return;
+		}
+
+		this.itemCounts[kind]--;
+
+		// A region nobody has asked about yet is counted after the pickup
+		final int[] counts = this.regionItemCounts.get(regionKey(col, row));
+		if (counts != null) {
+			counts[kind]--;
+		}
+	}
+
+	/**
+	 * @return the key of a cell's region in regionItemCounts
+	 */
+	private Long regionKey(int col, int row) {
+		return ((long) (row / REGION_SIZE) << 32) | (col / REGION_SIZE);
+	}
+
+	/**
+	 * Checks whether a file starts with the binary map header
+	 * 
+	 * @throws FileNotFoundException
+	 */
+	public static boolean isBinaryMap(String filename)
+			throws FileNotFoundException {
+		final byte[] header = new byte[BINARY_MAGIC.length];
+
+		try (FileInputStream in = new FileInputStream(filename)) {
+			int read = 0;
+			while (read < header.length) {
+				final int count = in.read(header, read, header.length - read);
+				if (count < 0) {
+					return false;
 				}
+				read += count;
 			}
+		} catch (final FileNotFoundException e) {
+			throw e;
+		} catch (final IOException e) {
+			return false;
+		}
+
+		return Arrays.equals(header, BINARY_MAGIC);
+	}
+
+	/**
+	 * Loads a binary map. Normally the cells are memory mapped and read in
+	 * place, so nothing is parsed or copied. The file is only opened for
+	 * reading and the mapping is read only, so PackedCells keeps picked up
+	 * items to itself and the file is never changed. With CHUNKED storage the
+	 * cells are instead read a region at a time as they are needed.
+	 * 
+	 * @param filename
+	 *            The name of the binary map file
+	 * @param storage
+	 *            How to store the cells
+	 * @throws ParseException
+	 * @throws FileNotFoundException
+	 */
+	private void readBinaryMap(String filename, Storage storage)
+			throws ParseException, FileNotFoundException {
+		final boolean chunked = (storage == Storage.CHUNKED);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ)) {
+			// The header is at most the magic, a name and four numbers
+			final ByteBuffer header = ByteBuffer.allocate(BINARY_MAGIC.length
+					+ 2 + 0xFFFF + 12);
+			while ((channel.read(header) > 0) && header.hasRemaining()) {
+				// Keep reading until the buffer is full or the file ends
+			}
+			header.flip();
+
+			header.position(BINARY_MAGIC.length);
+			final byte[] nameBytes = new byte[header.getShort() & 0xFFFF];
+			header.get(nameBytes);
+			this.name = new String(nameBytes, StandardCharsets.UTF_8);
+			this.goal = header.getInt();
+
+			final int mapWidth = header.getInt();
+			final int mapHeight = header.getInt();
+			final long cellsOffset = header.position();
+			final long cellCount = (long) mapWidth * mapHeight;
+
+			if ((mapWidth <= 0) || (mapHeight <= 0)
+					|| (channel.size() - cellsOffset < cellCount)) {
+				throw new ParseException("binary map is truncated",
+						(int) cellsOffset);
+			}
+
+			if (chunked) {
+				this.map = new ChunkedCells(filename, cellsOffset, mapWidth,
+						mapHeight);
+			} else {
+				this.map = new PackedCells(mapWidth, mapHeight, channel.map(
+						FileChannel.MapMode.READ_ONLY, cellsOffset, cellCount));
+			}
+		} catch (final BufferUnderflowException e) {
+			throw new ParseException("binary map header is truncated", 0);
+		} catch (final IOException e) {
+			throw new ParseException("could not read " + filename + ": "
+					+ e.getMessage(), 0);
 		}
-		return goldCount;
 	}
 
 	/**
@@ -140,7 +561,8 @@ public class Map {
 	 * @return A List of lines in the file
 	 * @throws FileNotFoundException
 	 */
-	private List<String> readFile(String filename) throws FileNotFoundException {
+	public static List<String> readFile(String filename)
+			throws FileNotFoundException {
 		Scanner scanner = null;
 
 		final List<String> lines = new ArrayList<String>();
@@ -166,16 +588,25 @@ public class Map {
 	 * 
 	 * @param lines
 	 *            All the lines of text from the map file
+	 * @param storage
+	 *            How to store the cells
 	 * @throws ParseException
 	 * @throws IllegalStateException
 	 */
-	private void readMap(List<String> lines) throws ParseException,
-			IllegalStateException {
+	private void readMap(List<String> lines, Storage storage)
+			throws ParseException, IllegalStateException {
 		// Read the rest of the map
 		final int mapWidth = lines.get(MAPBEGINLINE).length();
 		final int mapHeight = lines.size() - MAPBEGINLINE;
 
-		this.map = new Tile[mapHeight][mapWidth];
+		final WritableMapCells cells;
+		if ((storage == Storage.PACKED) || ((storage == Storage.AUTO)
+				&& ((long) mapWidth * mapHeight > PACKED_THRESHOLD))) {
+			cells = new PackedCells(mapWidth, mapHeight);
+		} else {
+			cells = new TileGrid(mapWidth, mapHeight);
+		}
+		this.map = cells;
 
 		for (int row = 0; row < mapHeight; row++) {
 			final int lineNum = row + MAPBEGINLINE;
@@ -190,7 +621,7 @@ public class Map {
 				// Just use the character representation in the input file.
 
 				try {
-					this.map[row][col] = Tile.fromChar(line.charAt(col));
+					cells.setCell(col, row, line.charAt(col));
 				} catch (final IllegalArgumentException e) {
 					throw new ParseException("Invalid character (col:" + col
 							+ ")", lineNum);
@@ -0,0 +1,45 @@
+/**
+ * The storage behind a Map, as the game sees it: cells read by column and row.
+ * Storage that a text map can be parsed into is a WritableMapCells.
+ *
+ * There is more than one way to store a map. TileGrid keeps a Tile object for
+ * every cell, which is simple, while PackedCells keeps each cell in a single
+ * byte so that very large maps fit in a small heap, and ChunkedCells reads
+ * regions of a binary map file only as they are needed.
+ */
+public interface MapCells {
+
+	/**
+	 * @return the width of the map
+	 */
+	public int getWidth();
+
+	/**
+	 * @return the height of the map
+	 */
+	public int getHeight();
+
+	/**
+	 * Returns the cell as a Tile, to be read. Items are taken off the map with
+	 * removeItem, not through the tile.
+	 */
+	public Tile getTile(int col, int row);
+
+	/**
+	 * Removes the item on a cell, e.g. when it is picked up
+	 *
+	 * @throws IllegalStateException
+	 *             if there is no item on the cell
+	 */
+	public void removeItem(int col, int row);
+
+	/**
+	 * @return the character shown for the cell in a LOOKREPLY
+	 */
+	public char toChar(int col, int row);
+
+	/**
+	 * @return true if the cell can be walked on
+	 */
+	public boolean isWalkable(int col, int row);
+}
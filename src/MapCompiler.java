@@ -0,0 +1,30 @@
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Compiles ASCII art maps, such as those in res/maps, into the binary map
+ * format. Large binary maps are memory mapped when loaded rather than parsed,
+ * so they open almost instantly.
+ *
+ * Usage: java MapCompiler textMap binaryMap
+ */
+public class MapCompiler {
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.err.println("Usage: java MapCompiler textMap binaryMap");
+			System.exit(1);
+		}
+
+		try {
+			final Map map = new Map(args[0], Map.Storage.PACKED);
+			map.writeBinary(args[1]);
+			System.out.println("Compiled " + map.getName() + " ("
+					+ map.getMapWidth() + "x" + map.getMapHeight() + ") to "
+					+ args[1]);
+		} catch (IOException | ParseException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
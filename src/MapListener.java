@@ -0,0 +1,18 @@
+/**
+ * An interface implemented by classes which keep something worked out from a
+ * map, and need to know when it changes.
+ */
+public interface MapListener {
+
+	/**
+	 * Informs the listener that an item has been picked up off the map
+	 * 
+	 * @param col
+	 *            the column of the cell the item was on
+	 * @param row
+	 *            the row of the cell the item was on
+	 * @param item
+	 *            the character of the item, e.g. 'G' for gold
+	 */
+	public void itemRemoved(int col, int row, char item);
+}
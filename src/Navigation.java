@@ -0,0 +1,79 @@
+/**
+ * The distance fields for one map, shared by every AI player in the game, so
+ * that the way to the nearest exit or item is searched for once rather than
+ * once per player per turn.
+ *
+ * A field is only worked out the first time it is asked for. When an item is
+ * picked up only the field for that kind of item is marked stale, and it is
+ * worked out again from scratch, into the same arrays, the next time somebody
+ * asks. Exits never change, so the field to them is kept for the whole game.
+ * As a field is rebuilt in place, it should not be held on to across another
+ * call to fieldTo.
+ */
+public class Navigation implements MapListener {
+	// The cells a field can lead to, in the order the fields are kept
+	private static final String TARGETS = "EAGHLS";
+
+	private final Map map;
+	private final DistanceField[] fields = new DistanceField[TARGETS.length()];
+	private final boolean[] stale = new boolean[TARGETS.length()];
+
+	private Navigation(Map map) {
+		this.map = map;
+	}
+
+	/**
+	 * Creates the navigation for a map, and listens for items being picked up
+	 * off it
+	 *
+	 * @param map
+	 *            the map to navigate
+	 */
+	public static Navigation forMap(Map map) {
+		final Navigation navigation = new Navigation(map);
+		map.addListener(navigation);
+		return navigation;
+	}
+
+	/**
+	 * @param target
+	 *            the character of the cells to find, e.g. 'G' for gold
+	 * @return the distances to the nearest such cell
+	 */
+	public synchronized DistanceField fieldTo(char target) {
+		final int kind = TARGETS.indexOf(target);
+		if (kind == -1) {
+			throw new IllegalArgumentException("Cannot navigate to " + target);
+		}
+
+		if (this.fields[kind] == null) {
+			this.fields[kind] = new DistanceField(this.map, target);
+		} else if (this.stale[kind]) {
+			this.fields[kind].rebuild(this.map);
+		}
+		this.stale[kind] = false;
+		return this.fields[kind];
+	}
+
+	/**
+	 * @return the distances to the nearest exit
+	 */
+	public DistanceField toExit() {
+		return fieldTo('E');
+	}
+
+	/**
+	 * @return the distances to the nearest gold still on the map
+	 */
+	public DistanceField toGold() {
+		return fieldTo('G');
+	}
+
+	@Override
+	public synchronized void itemRemoved(int col, int row, char item) {
+		final int kind = TARGETS.indexOf(item);
+		if (kind != -1) {
+			this.stale[kind] = true;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The NioServer equivalent of ClientThread.
+ * <p>
+ * A session does not own a thread. Its I/O loop reads whatever bytes have arrived, the session splits them into lines
+ * and passes each complete line through processCommand exactly as ClientThread does. Output is queued and written by
+ * the loop when the socket can take it, so no game thread ever blocks on a slow client. A client that stops reading
+ * is disconnected once its queue passes the OutboundLimits.
+ *
+ * @Author Daniel Jenkyn
+ */
+public class NioClientSession extends CommandLineUser {
+    // Lines longer than this are not commands, so the client is dropped
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final SocketChannel channel;
+    private final NioServer.IoLoop loop;
+    private final Charset charset = Charset.defaultCharset();
+    private SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    // Set once the client has sent PROTOCOL BINARY. The line buffer then holds the frame being read, and frameLength is
+    // its length, or -1 while the two length bytes are being read.
+    private boolean frames = false;
+    private int frameLength = -1;
+
+    private final OutboundQueue outbound;
+    // Reused by flush to write several queued messages in one call
+    private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+    // Set while the session is waiting in its loop's write queue, so it is only queued once
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new session for an accepted channel. The player is not added until start() is called by the loop.
+     */
+    NioClientSession(SocketChannel channel, Lobby lobby, NioServer.IoLoop loop, OutboundLimits limits) {
+        super(lobby);
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = new OutboundQueue(limits);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Adds the player and sends the same lookreply trigger that ClientThread sends when a player joins, or tells the
+     * client why it cannot play and disconnects it.
+     */
+    void start() {
+        onGameThread(this::addPlayerOrDisconnect);
+    }
+
+    /**
+     * Reads whatever is available on the channel and processes it. Called by the loop when the key is readable.
+     */
+    void read() {
+        int count;
+        try {
+            count = channel.read(readBuffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            close();
+            return;
+        }
+        run();
+    }
+
+    /**
+     * Frames the bytes read so far into lines, or binary frames once the client has switched, and processes every
+     * complete one. Anything after the last complete one is kept for the next read.
+     */
+    public void run() {
+        readBuffer.flip();
+        while (readBuffer.hasRemaining() && !closed && !outbound.isFinishing()) {
+            if (frames) {
+                readFrame();
+                continue;
+            }
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                int length = lineLength;
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                String inputLine = new String(line, 0, length, charset);
+                lineLength = 0;
+                processCommand(inputLine);
+                frames = inputLine.equals(WireProtocol.SWITCH_COMMAND);
+            } else {
+                if (lineLength == MAX_LINE_LENGTH) {
+                    close();
+                    return;
+                }
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                }
+                line[lineLength++] = b;
+            }
+        }
+        readBuffer.clear();
+    }
+
+    /**
+     * Copies as much of the current frame as has been read into the line buffer, and processes it once it is whole.
+     */
+    private void readFrame() {
+        if (frameLength < 0) {
+            line[lineLength++] = readBuffer.get();
+            if (lineLength < 2) {
+                return;
+            }
+            frameLength = ((line[0] & 0xFF) << 8) | (line[1] & 0xFF);
+            lineLength = 0;
+            if (line.length < frameLength) {
+                line = new byte[frameLength];
+            }
+        }
+
+        int count = Math.min(readBuffer.remaining(), frameLength - lineLength);
+        readBuffer.get(line, lineLength, count);
+        lineLength += count;
+        if (lineLength == frameLength) {
+            byte[] body = Arrays.copyOf(line, frameLength);
+            frameLength = -1;
+            lineLength = 0;
+            processFrame(body);
+        }
+    }
+
+    /**
+     * Queues a message for the client and asks this session's loop to write it. May be called from any loop, e.g. when
+     * another player shouts. The bytes may be shared with other sessions, so each gets its own buffer over them.
+     * <p>
+     * If the client has fallen too far behind, the loop closes the session when it comes to write instead.
+     */
+    protected void doOutputBytes(byte[] bytes, boolean isChange) {
+        if (closed) {
+            return;
+        }
+        outbound.add(ByteBuffer.wrap(bytes), isChange);
+
+        if (writeRequested.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Writes as much queued output as the socket will take, gathering up to 64 messages into each write. If the socket
+     * fills up the loop is asked to tell us when it is writable again. Only called on the session's loop thread.
+     */
+    void flush() {
+        writeRequested.set(false);
+        if (closed) {
+            return;
+        }
+        if (outbound.isEvicted()) {
+            System.out.println("Disconnected a client that stopped reading");
+            close();
+            return;
+        }
+        try {
+            int count;
+            while ((count = outbound.peek(writeBatch)) > 0) {
+                // Gather the queued messages into one write
+                channel.write(writeBatch, 0, count);
+                boolean partial = writeBatch[count - 1].hasRemaining();
+                Arrays.fill(writeBatch, 0, count, null);
+                outbound.removeWritten();
+                if (partial) {
+                    // Stop reading commands while the client is not reading their replies
+                    key.interestOps(outbound.isCongested() ? SelectionKey.OP_WRITE
+                            : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (outbound.isFinishing()) {
+                // Everything the client was to be told has been written
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Has the loop write what is queued and then close the session.
+     */
+    protected void disconnect() {
+        outbound.finish();
+        if (writeRequested.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Removes the player from the game and closes the channel. Sends a change on the way out, as ClientThread does. The
+     * loop also calls this to drop a session whose game code failed.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        onGameThread(() -> {
+            removePlayer();
+            manualChange();
+        });
+    }
+}
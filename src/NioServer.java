@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking alternative to Server.
+ * <p>
+ * Rather than starting a ClientThread per socket, every session is serviced by one of a small, fixed set of I/O loops.
+ * Each loop owns a Selector and reads, frames and writes for the sessions registered with it. The first loop also
+ * accepts new connections and hands them out to the loops in turn.
+ *
+ * @Author Daniel Jenkyn
+ */
+public class NioServer {
+    private final Lobby lobby;
+    private final OutboundLimits limits;
+    private final ServerSocketChannel serverChannel;
+    private final IoLoop[] loops;
+    private int nextLoop = 0;
+
+    /**
+     * Constructs a new instance of the NioServer and starts its I/O loop threads.
+     *
+     * @param game       the game the sessions will play
+     * @param portNumber the port to listen on
+     * @param loopCount  the number of I/O loop threads to run
+     */
+    public NioServer(GameLogic game, int portNumber, int loopCount) throws IOException {
+        this(new Lobby(game), portNumber, loopCount);
+    }
+
+    /**
+     * Constructs a new instance of the NioServer whose sessions are matched into the lobby's rooms.
+     *
+     * @param lobby      the lobby hosting the games
+     * @param portNumber the port to listen on
+     * @param loopCount  the number of I/O loop threads to run
+     */
+    public NioServer(Lobby lobby, int portNumber, int loopCount) throws IOException {
+        this(lobby, portNumber, loopCount, OutboundLimits.DEFAULT);
+    }
+
+    /**
+     * Constructs a new instance of the NioServer whose sessions' unsent output is bounded by the given limits.
+     *
+     * @param lobby      the lobby hosting the games
+     * @param portNumber the port to listen on
+     * @param loopCount  the number of I/O loop threads to run
+     * @param limits     when to treat a session as a slow consumer
+     */
+    public NioServer(Lobby lobby, int portNumber, int loopCount, OutboundLimits limits) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("at least one I/O loop is needed");
+        }
+        this.lobby = lobby;
+        this.limits = limits;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(portNumber));
+        serverChannel.configureBlocking(false);
+
+        loops = new IoLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new IoLoop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (IoLoop loop : loops) {
+            Thread thread = new Thread(loop, "nio-loop-" + loop.index);
+            thread.start();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and passes each one to the next loop.
+     */
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            IoLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.register(channel);
+        }
+    }
+
+    /**
+     * A single I/O thread. All selector operations happen on this thread; other threads only queue work for it and
+     * wake it up.
+     */
+    final class IoLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        private final Queue<NioClientSession> pendingWrites = new ConcurrentLinkedQueue<NioClientSession>();
+        private volatile Thread thread;
+
+        private IoLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hands a freshly accepted channel to this loop.
+         */
+        private void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to flush a session's output. Safe to call from any thread; the selector is only woken if the
+         * caller is another thread, as the loop flushes after every pass anyway.
+         */
+        void requestWrite(NioClientSession session) {
+            pendingWrites.add(session);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Loop body
+         * <p>
+         * Registers new sessions, services whatever keys are ready and then flushes the output they produced.
+         */
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    registerNewChannels();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            handleKey(key);
+                        } catch (RuntimeException e) {
+                            // Game code run inline failed; only this session is dropped
+                            e.printStackTrace();
+                            closeBroken(key);
+                        }
+                    }
+
+                    flushPendingWrites();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                NioClientSession session = null;
+                try {
+                    session = new NioClientSession(channel, lobby, this, limits);
+                    session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+                    session.start();
+                } catch (ClosedChannelException e) {
+                    // The client went away before we got to it
+                } catch (RuntimeException e) {
+                    // e.g. there is no free tile for the player; only this client is turned away
+                    e.printStackTrace();
+                    closeBroken(session, channel);
+                }
+            }
+        }
+
+        /**
+         * Drops the session on a key whose game code threw, so the loop can carry on serving everyone else.
+         */
+        private void closeBroken(SelectionKey key) {
+            if (key.attachment() instanceof NioClientSession) {
+                closeBroken((NioClientSession) key.attachment(), (SocketChannel) key.channel());
+            }
+        }
+
+        private void closeBroken(NioClientSession session, SocketChannel channel) {
+            try {
+                if (session != null) {
+                    session.close();
+                } else {
+                    channel.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void flushPendingWrites() {
+            NioClientSession session;
+            while ((session = pendingWrites.poll()) != null) {
+                try {
+                    session.flush();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    closeBroken(session, null);
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                acceptConnections();
+                return;
+            }
+
+            NioClientSession session = (NioClientSession) key.attachment();
+            if (key.isWritable()) {
+                session.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                session.read();
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.Random;
+
+/**
+ * An index of which player is standing on each cell of the map.
+ *
+ * Rather than scanning every player to see if one is on a tile, the game asks
+ * the grid. The players keep it up to date as they move and die. The grid also
+ * picks the free cells new players start on.
+ *
+ * Most maps use a DenseOccupancyGrid, which has a slot for every cell. A
+ * chunked map, or any map with more than DENSE_CELL_LIMIT cells, is too big
+ * for that, so it uses a SparseOccupancyGrid, which only records the cells
+ * players are standing on.
+ */
+public abstract class OccupancyGrid {
+	// The value of a cell nobody is standing on
+	public static final int EMPTY = -1;
+
+	// The most cells a map can have and still get a dense grid. A dense grid
+	// takes three ints a cell, for every room playing the map, so this is 12MB.
+	public static final long DENSE_CELL_LIMIT = 1L << 20;
+
+	/**
+	 * Creates an empty grid suited to the map
+	 *
+	 * @param map
+	 *            the map the players are on
+	 */
+	public static OccupancyGrid forMap(Map map) {
+		final long cells = (long) map.getMapWidth() * map.getMapHeight();
+
+		return (map.isChunked() || (cells > DENSE_CELL_LIMIT))
+				? new SparseOccupancyGrid(map)
+				: new DenseOccupancyGrid(map);
+	}
+
+	/**
+	 * Returns the ID of the player on a cell
+	 *
+	 * @param col
+	 *            the column of the cell
+	 * @param row
+	 *            the row of the cell
+	 * @return the player's ID, or EMPTY if nobody is there or the cell is off
+	 *         the map
+	 */
+	public abstract int playerAt(int col, int row);
+
+	/**
+	 * @return the ID of the player at the location, or EMPTY
+	 */
+	public int playerAt(Location location) {
+		return playerAt(location.getCol(), location.getRow());
+	}
+
+	/**
+	 * Records a player as standing on a cell. Locations off the map, such as
+	 * that of a dead player, are ignored.
+	 *
+	 * @param playerID
+	 *            the ID of the player
+	 * @param location
+	 *            where the player is standing
+	 */
+	public abstract void place(int playerID, Location location);
+
+	/**
+	 * Records that a player has left a cell. The cell is only cleared if that
+	 * player was the one recorded there.
+	 *
+	 * @param playerID
+	 *            the ID of the player
+	 * @param location
+	 *            where the player was standing
+	 */
+	public abstract void vacate(int playerID, Location location);
+
+	/**
+	 * Picks a walkable cell nobody is standing on, at random
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @return the location of the cell, or null if no free cell was found
+	 */
+	public abstract Location randomFreeCell(Random random);
+}
@@ -0,0 +1,50 @@
+/**
+ * How much unsent output a session may hold before it is treated as a slow consumer.
+ * <p>
+ * Once a session's queued output goes over the high watermark it is congested. It stays congested until the client
+ * has read enough for the queue to fall to the low watermark. A session that is still congested after the eviction
+ * delay, or whose queue passes the hard limit, is disconnected rather than being allowed to hold up the game or grow
+ * without bound.
+ *
+ * @Author Daniel Jenkyn
+ */
+public class OutboundLimits {
+    public static final OutboundLimits DEFAULT = new OutboundLimits(64 * 1024, 16 * 1024, 256 * 1024, 10000);
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final int hardLimit;
+    private final long evictAfterMillis;
+
+    /**
+     * @param highWatermark    the queued bytes above which a session is congested
+     * @param lowWatermark     the queued bytes at or below which a congested session recovers
+     * @param hardLimit        the queued bytes above which a session is disconnected at once
+     * @param evictAfterMillis how long a session may stay congested before it is disconnected
+     */
+    public OutboundLimits(int highWatermark, int lowWatermark, int hardLimit, long evictAfterMillis) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > hardLimit) {
+            throw new IllegalArgumentException("watermarks must satisfy 0 <= low <= high <= hard limit");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.hardLimit = hardLimit;
+        this.evictAfterMillis = evictAfterMillis;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHardLimit() {
+        return hardLimit;
+    }
+
+    public long getEvictAfterMillis() {
+        return evictAfterMillis;
+    }
+}
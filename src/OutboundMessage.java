@@ -0,0 +1,118 @@
+import java.nio.charset.Charset;
+
+/**
+ * A message from the server to a user, with its bytes for each protocol.
+ *
+ * The bytes are only encoded when first needed and then kept, so a message
+ * sent to many users, such as a shout or a CHANGE, is encoded once however
+ * many users it goes to. The bytes are shared, so they must never be changed.
+ */
+public final class OutboundMessage {
+	// Sent to every player who can see a change, so it is only ever encoded once
+	public static final OutboundMessage CHANGE = new OutboundMessage("CHANGE");
+
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+			.getBytes();
+
+	// Null until asked for if the message was built from its line or frame
+	private volatile String text;
+	private volatile byte[] line = null;
+	private volatile byte[] frame = null;
+
+	/**
+	 * @param text
+	 *            the message in the text protocol, without a line separator
+	 */
+	public OutboundMessage(String text) {
+		this.text = text;
+	}
+
+	private OutboundMessage(byte[] line, byte[] frame) {
+		this.line = line;
+		this.frame = frame;
+	}
+
+	/**
+	 * Wraps a message that has already been encoded as a line of the text
+	 * protocol, e.g. a LOOKREPLY rendered straight into bytes. The text is
+	 * only decoded if something asks for it.
+	 * 
+	 * @param line
+	 *            the message followed by a line separator, which must never be
+	 *            changed afterwards
+	 */
+	public static OutboundMessage fromLine(byte[] line) {
+		return new OutboundMessage(line, null);
+	}
+
+	/**
+	 * Wraps a message that has already been encoded as a WireProtocol frame,
+	 * e.g. a LOOKREPLY rendered straight into one. It can only be sent to a
+	 * user on frames.
+	 * 
+	 * @param frame
+	 *            the whole frame, which must never be changed afterwards
+	 */
+	public static OutboundMessage fromFrame(byte[] frame) {
+		return new OutboundMessage(null, frame);
+	}
+
+	/**
+	 * @return the message in the text protocol, without a line separator
+	 * @throws IllegalStateException
+	 *             if the message was only ever encoded as a frame
+	 */
+	public String getText() {
+		String text = this.text;
+		if (text == null) {
+			if (this.line == null) {
+				throw new IllegalStateException(
+						"message was only encoded as a frame");
+			}
+			text = new String(this.line, 0,
+					this.line.length - LINE_SEPARATOR.length,
+					Charset.defaultCharset());
+			this.text = text;
+		}
+		return text;
+	}
+
+	/**
+	 * @return true if this is a CHANGE, which a user only needs one of at a
+	 *         time
+	 */
+	public boolean isChange() {
+		// Messages built from their line are never a CHANGE, so there is no
+		// need to decode them to find out
+		final String text = this.text;
+		return (text != null) && text.equals("CHANGE");
+	}
+
+	/**
+	 * @return the message as a line of the text protocol, with its separator
+	 */
+	public byte[] line() {
+		byte[] bytes = this.line;
+		if (bytes == null) {
+			final byte[] text = getText().getBytes(Charset.defaultCharset());
+			bytes = new byte[text.length + LINE_SEPARATOR.length];
+			System.arraycopy(text, 0, bytes, 0, text.length);
+			System.arraycopy(LINE_SEPARATOR, 0, bytes, text.length,
+					LINE_SEPARATOR.length);
+			this.line = bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the message as a WireProtocol frame
+	 */
+	public byte[] frame() {
+		byte[] bytes = this.frame;
+		if (bytes == null) {
+			bytes = WireProtocol.encodeReply(getText());
+			this.frame = bytes;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,293 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The output waiting to be written to one client, bounded by an OutboundLimits.
+ * <p>
+ * Game threads add to the queue and never wait for the network. The session's writer, a thread for ClientThread or
+ * the I/O loop for NioClientSession, takes what is queued and writes it when the socket allows.
+ * <p>
+ * A CHANGE only tells the client to LOOK again, so while one is still queued another adds nothing and is dropped. When
+ * the client does LOOK it sees every change made up to then.
+ * <p>
+ * While the queue is congested the session stops reading the client's commands, so a client cannot flood itself with
+ * replies. If the client falls too far behind, see OutboundLimits, the queue is marked for eviction and add returns
+ * false. The session then closes the connection, but leaves removing the player to its own thread; the game thread that
+ * noticed may be part way through telling every player something.
+ *
+ * @Author Daniel Jenkyn
+ */
+public class OutboundQueue {
+    private final OutboundLimits limits;
+
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+    private long queuedBytes = 0;
+
+    // The CHANGE still waiting to be written, if there is one
+    private ByteBuffer queuedChange = null;
+
+    // When the queue went over the high watermark, or -1 if it is not congested
+    private long congestedSince = -1;
+    private volatile boolean evicted = false;
+    private boolean closed = false;
+    // Set once nothing more is to be queued, so the writer closes the connection after what is already queued
+    private volatile boolean finishing = false;
+
+    // Guards everything above, and wakes a blocked writer
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+
+    public OutboundQueue(OutboundLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Queues output for the client. It is not handed to a blocked writer until flush() is called.
+     *
+     * @param buffer   the bytes to send
+     * @param isChange whether this is a CHANGE, which is dropped if one is already queued
+     * @return false if the client has fallen so far behind it should be disconnected
+     */
+    public boolean add(ByteBuffer buffer, boolean isChange) {
+        lock.lock();
+        try {
+            if (closed || evicted || finishing) {
+                return !evicted;
+            }
+            if (isChange) {
+                if (queuedChange != null) {
+                    return true;
+                }
+                queuedChange = buffer;
+            }
+
+            buffers.add(buffer);
+            queuedBytes += buffer.remaining();
+
+            if (queuedBytes > limits.getHighWatermark()) {
+                long now = System.nanoTime();
+                if (congestedSince < 0) {
+                    congestedSince = now;
+                }
+                if (queuedBytes > limits.getHardLimit() || isOverdue(now)) {
+                    evict();
+                }
+            }
+            return !evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes the writer if it is waiting for output.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            flushed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the client if the queue has been congested for longer than the limits allow. add only checks this when
+     * more output is queued, so a writer calls this to notice a client that stopped reading after the last of it.
+     *
+     * @return true if the client has been evicted
+     */
+    public boolean evictIfOverdue() {
+        lock.lock();
+        try {
+            if (!closed && !evicted && congestedSince >= 0 && isOverdue(System.nanoTime())) {
+                evict();
+            }
+            return evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many nanoseconds until the congested queue is overdue for eviction, or -1 if it is not congested
+     */
+    public long nanosUntilOverdue() {
+        lock.lock();
+        try {
+            if (closed || evicted || congestedSince < 0) {
+                return -1;
+            }
+            long deadline = congestedSince + TimeUnit.MILLISECONDS.toNanos(limits.getEvictAfterMillis());
+            return Math.max(0, deadline - System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Only called holding the lock while congested
+    private boolean isOverdue(long now) {
+        return now - congestedSince > TimeUnit.MILLISECONDS.toNanos(limits.getEvictAfterMillis());
+    }
+
+    /**
+     * Gives up on the client. The queued output is discarded and the writer is woken to close the connection.
+     */
+    public void evict() {
+        lock.lock();
+        try {
+            evicted = true;
+            buffers.clear();
+            queuedBytes = 0;
+            queuedChange = null;
+            flushed.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops queueing output, so the writer writes what is already queued and then closes the connection.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            flushed.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once finish has been called
+     */
+    public boolean isFinishing() {
+        return finishing;
+    }
+
+    /**
+     * @return true if the client has fallen too far behind and should be disconnected
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return true if the queue has gone over the high watermark and not yet fallen back to the low watermark
+     */
+    public boolean isCongested() {
+        lock.lock();
+        try {
+            return congestedSince >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the queue is not congested. A session stops reading commands from a congested client, whose
+     * commands would only add to the output it is not reading.
+     */
+    public void awaitUncongested() throws InterruptedException {
+        lock.lock();
+        try {
+            while (congestedSince >= 0 && !closed && !evicted && !finishing) {
+                drained.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards anything queued and releases a blocked writer. Called once the connection is closed.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            buffers.clear();
+            queuedBytes = 0;
+            queuedChange = null;
+            flushed.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies references to the buffers at the head of the queue, without removing them.
+     *
+     * @param batch where to put them
+     * @return how many were copied
+     */
+    public int peek(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            for (ByteBuffer buffer : buffers) {
+                if (count == batch.length) {
+                    break;
+                }
+                batch[count++] = buffer;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * As peek, but waits for flushed output if there is none. Only for a writer that may block.
+     *
+     * @return how many buffers were copied, or -1 if the queue has been closed or evicted, or finished and written
+     */
+    public int awaitOutput(ByteBuffer[] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (buffers.isEmpty() && !closed && !evicted && !finishing) {
+                flushed.await();
+            }
+            if (closed || evicted || buffers.isEmpty()) {
+                return -1;
+            }
+            return peek(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the buffers at the head of the queue that have been written in full.
+     *
+     * @return true if the queue is now empty
+     */
+    public boolean removeWritten() {
+        lock.lock();
+        try {
+            ByteBuffer buffer;
+            while ((buffer = buffers.peek()) != null && !buffer.hasRemaining()) {
+                buffers.poll();
+                queuedBytes -= buffer.limit();
+                if (buffer == queuedChange) {
+                    queuedChange = null;
+                }
+            }
+            if (congestedSince >= 0 && queuedBytes <= limits.getLowWatermark()) {
+                congestedSince = -1;
+                drained.signalAll();
+            }
+            return buffers.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
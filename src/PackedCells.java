@@ -0,0 +1,198 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Map storage holding each cell in a single byte, in row-major order.
+ *
+ * The low two bits of a cell are the tile type and the next three bits are the
+ * kind of item on it, if any. Items have no state of their own, so one shared
+ * instance of each kind stands in for every item of that kind on the map.
+ * Tiles are only created when asked for, as views onto the bytes.
+ *
+ * The bytes are normally on the heap, but may be a read only buffer mapped
+ * from a binary map file. Cells changed in a read only buffer, i.e. items that
+ * have been picked up, are kept separately and take precedence over it.
+ */
+public class PackedCells implements WritableMapCells {
+	private static final int TYPE_MASK = 0x03;
+	private static final int ITEM_SHIFT = 2;
+
+	// The item characters, indexed by item kind. Kind 0 is no item.
+	private static final String ITEM_CHARS = " AGHLS";
+	private static final GameItem[] ITEMS = new GameItem[ITEM_CHARS.length()];
+
+	// Cached, as values() copies the array on every call
+	private static final Tile.TileType[] TYPES = Tile.TileType.values();
+
+	static {
+		for (int kind = 1; kind < ITEM_CHARS.length(); kind++) {
+			ITEMS[kind] = GameItem.fromChar(ITEM_CHARS.charAt(kind));
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final ByteBuffer cells;
+
+	// Cells changed since they were read, by index, if the buffer is read only
+	private final HashMap<Integer, Byte> changedCells;
+
+	public PackedCells(int width, int height) {
+		this(width, height, ByteBuffer.allocate(width * height));
+	}
+
+	/**
+	 * Stores the map in cells that have already been packed, e.g. read from a
+	 * binary map file.
+	 *
+	 * @param cells
+	 *            width * height packed cells, from index 0
+	 */
+	public PackedCells(int width, int height, ByteBuffer cells) {
+		if (cells.capacity() < width * height) {
+			throw new IllegalArgumentException("not enough cells for the map");
+		}
+		this.width = width;
+		this.height = height;
+		this.cells = cells;
+		this.changedCells = cells.isReadOnly()
+				? new HashMap<Integer, Byte>()
+				: null;
+	}
+
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	@Override
+	public void setCell(int col, int row, char character) {
+		putCell((row * this.width) + col, encode(character));
+	}
+
+	@Override
+	public Tile getTile(int col, int row) {
+		return new CellTile((row * this.width) + col);
+	}
+
+	@Override
+	public void removeItem(int col, int row) {
+		removeItemAt((row * this.width) + col);
+	}
+
+	@Override
+	public char toChar(int col, int row) {
+		return decode(cell((row * this.width) + col));
+	}
+
+	@Override
+	public boolean isWalkable(int col, int row) {
+		return typeOf(cell((row * this.width) + col)).walkable();
+	}
+
+	/**
+	 * Packs the character of a map cell into a byte
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the character is not a tile or an item
+	 */
+	static byte encode(char character) {
+		for (final Tile.TileType type : TYPES) {
+			if (character == type.toChar()) {
+				return (byte) type.ordinal();
+			}
+		}
+
+		final int kind = ITEM_CHARS.indexOf(character);
+		if (kind < 1) {
+			throw new IllegalArgumentException("Invalid tile type" + character);
+		}
+
+		// Only a floor tile can have an item
+		return (byte) (Tile.TileType.FLOOR.ordinal() | (kind << ITEM_SHIFT));
+	}
+
+	/**
+	 * @return the character shown for a packed cell
+	 */
+	static char decode(byte cell) {
+		final int kind = itemKind(cell);
+		if (kind != 0) {
+			return ITEM_CHARS.charAt(kind);
+		}
+		return typeOf(cell).toChar();
+	}
+
+	private void removeItemAt(int index) {
+		final byte cell = cell(index);
+		if (itemKind(cell) == 0) {
+			// There is no item to pick up
+			throw new IllegalStateException("there is no item to pick up");
+		}
+		putCell(index, (byte) (cell & TYPE_MASK));
+	}
+
+	private byte cell(int index) {
+		if (this.changedCells != null) {
+			final Byte changed = this.changedCells.get(index);
+			if (changed != null) {
+				return changed;
+			}
+		}
+		return this.cells.get(index);
+	}
+
+	private void putCell(int index, byte cell) {
+		if (this.changedCells != null) {
+			this.changedCells.put(index, cell);
+		} else {
+			this.cells.put(index, cell);
+		}
+	}
+
+	private static Tile.TileType typeOf(byte cell) {
+		return TYPES[cell & TYPE_MASK];
+	}
+
+	private static int itemKind(byte cell) {
+		return (cell >> ITEM_SHIFT) & 0x07;
+	}
+
+	/**
+	 * A Tile backed by one cell of the array, so that picking up its item
+	 * clears it from the map.
+	 */
+	private final class CellTile extends Tile {
+		private final int index;
+
+		private CellTile(int index) {
+			super(typeOf(cell(index)));
+			this.index = index;
+		}
+
+		@Override
+		public char toChar() {
+			return decode(cell(this.index));
+		}
+
+		@Override
+		public boolean hasItem() {
+			return itemKind(cell(this.index)) != 0;
+		}
+
+		@Override
+		public GameItem getItem() {
+			return ITEMS[itemKind(cell(this.index))];
+		}
+
+		@Override
+		public void removeItem() {
+			removeItemAt(this.index);
+		}
+	}
+}
@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -24,6 +25,13 @@ public class Player implements GameItemConsumer {
 	// Location on the map
 	private Location location;
 
+	// The game's index of who is standing where, kept up to date as the
+	// player moves. May be null if the player is not on an indexed map.
+	private final OccupancyGrid occupancy;
+
+	// The player's ID within the game, used in the occupancy grid
+	private final int id;
+
 	// How much gold they have, initially zero
 	private int gold = 0;
 
@@ -44,6 +52,10 @@ public class Player implements GameItemConsumer {
 	// How far can a player see by default and with a lantern
 	private static final int defaultLookDistance = 2;
 
+	// Which cells of a look are visible, indexed by look distance. Built on
+	// first use and never changed, so LOOK can share them.
+	private static volatile boolean[][] visibilityMasks = new boolean[0][];
+
 	/**
 	 * Constructor for players
 	 * 
@@ -55,8 +67,34 @@ public class Player implements GameItemConsumer {
 	 *            a player may be "listened to" for updates.
 	 */
 	public Player(String name, Location location, PlayerListener listener) {
+		this(name, location, listener, null, -1);
+	}
+
+	/**
+	 * Constructor for players on a map with an occupancy grid. The player is
+	 * recorded in the grid straight away.
+	 * 
+	 * @param name
+	 *            the name of the player
+	 * @param location
+	 *            the location of the player
+	 * @param listener
+	 *            a player may be "listened to" for updates.
+	 * @param occupancy
+	 *            the grid recording where players are
+	 * @param id
+	 *            the player's ID within the game
+	 */
+	public Player(String name, Location location, PlayerListener listener,
+			OccupancyGrid occupancy, int id) {
 		this.name = name;
 		this.location = location;
+		this.occupancy = occupancy;
+		this.id = id;
+
+		if (this.occupancy != null) {
+			this.occupancy.place(id, location);
+		}
 
 		// By default the player starts with nothing
 		this.items = new ArrayList<GameItem>();
@@ -108,6 +146,10 @@ public class Player implements GameItemConsumer {
 	 *            the player's new location
 	 */
 	public void setLocation(Location location) {
+		if (this.occupancy != null) {
+			this.occupancy.vacate(this.id, this.location);
+			this.occupancy.place(this.id, location);
+		}
 		this.location = location;
 	}
 
@@ -218,6 +260,69 @@ public class Player implements GameItemConsumer {
 		return canSeeTile;
 	}
 
+	/**
+	 * Returns true if the location is in the part of the map the player would
+	 * be shown by a LOOK.
+	 * 
+	 * @param location
+	 *            the location to check
+	 * @return true if the player can see the location
+	 */
+	public boolean canSeeLocation(Location location) {
+		final int rowOffset = Math.abs(location.getRow() - this.location.getRow());
+		final int colOffset = Math.abs(location.getCol() - this.location.getCol());
+		final int lookDistance = lookDistance();
+
+		// The look is a square, with its corners cut off by canSeeTile
+		return (rowOffset <= lookDistance) && (colOffset <= lookDistance)
+				&& (rowOffset + colOffset <= lookDistance + 1);
+	}
+
+	/**
+	 * Returns which cells of a look with the given distance can be seen, in
+	 * row-major order. It gives the same answer as canSeeTile for every cell,
+	 * but is worked out once per distance rather than on every LOOK.
+	 * 
+	 * @param lookDistance
+	 *            the distance the player can see
+	 * @return the mask, (2 * lookDistance + 1) squared long
+	 */
+	public static boolean[] visibilityMask(int lookDistance) {
+		if (lookDistance < 0) {
+			return new boolean[0];
+		}
+
+		final boolean[][] masks = visibilityMasks;
+		if ((lookDistance < masks.length) && (masks[lookDistance] != null)) {
+			return masks[lookDistance];
+		}
+
+		return buildVisibilityMask(lookDistance);
+	}
+
+	private static synchronized boolean[] buildVisibilityMask(int lookDistance) {
+		final boolean[][] masks = Arrays.copyOf(visibilityMasks,
+				Math.max(visibilityMasks.length, lookDistance + 1));
+
+		if (masks[lookDistance] == null) {
+			final int size = (2 * lookDistance) + 1;
+			final boolean[] mask = new boolean[size * size];
+
+			for (int rowOffset = -lookDistance; rowOffset <= lookDistance; rowOffset++) {
+				for (int colOffset = -lookDistance; colOffset <= lookDistance; colOffset++) {
+					// This is based on the Manhattan distance, as canSeeTile
+					mask[((rowOffset + lookDistance) * size) + colOffset
+							+ lookDistance] = (Math.abs(rowOffset)
+							+ Math.abs(colOffset) <= lookDistance + 1);
+				}
+			}
+			masks[lookDistance] = mask;
+		}
+
+		visibilityMasks = masks;
+		return masks[lookDistance];
+	}
+
 	/**
 	 * Check if the player already has a given item type (e.g. any sword, not
 	 * just "that" sword)
@@ -265,6 +370,15 @@ public class Player implements GameItemConsumer {
 		this.listener.sendMessage(message);
 	}
 
+	/**
+	 * @param message
+	 *            message to send to the listener, which is also being sent to
+	 *            other players
+	 */
+	public void sendMessage(Broadcast message) {
+		this.listener.sendMessage(message);
+	}
+
 	/**
 	 *	Sends change to listener
 	 */
@@ -304,7 +418,7 @@ public class Player implements GameItemConsumer {
 	 */
 	public void kill() {
 		this.hp = 0;
-		this.location = new Location(-1, -1);
+		setLocation(new Location(-1, -1));
 	}
 
 	/**
@@ -15,6 +15,18 @@ public interface PlayerListener {
 	 */
 	public void sendMessage(String message);
 
+	/**
+	 * Sends a message that is going to many players at once. The same
+	 * Broadcast goes to every listener, so work such as encoding it can be
+	 * shared between them.
+	 * 
+	 * @param message
+	 *            The message to be sent
+	 */
+	public default void sendMessage(Broadcast message) {
+		sendMessage(message.getText());
+	}
+
 	/**
 	 * Sends a change to the player from the game.
 	 *
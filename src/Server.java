@@ -1,6 +1,8 @@
 import java.net.*;
 import java.text.ParseException;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Class has not changed since coursework 2
@@ -20,12 +22,27 @@ public class Server {
      * The server is constantly listening for new player to join.
      */
     public Server(GameLogic game, int portNumber) throws IOException {
+        this(new Lobby(game), portNumber, false);
+    }
+
+    /**
+     * Constructs a new instance of the Server whose players are matched into the lobby's rooms. If virtualThreads is
+     * set each ClientThread is run on a virtual thread rather than a platform thread.
+     */
+    public Server(Lobby lobby, int portNumber, boolean virtualThreads) throws IOException {
+        this(lobby, portNumber, virtualThreads, OutboundLimits.DEFAULT);
+    }
+
+    /**
+     * Constructs a new instance of the Server whose clients' unsent output is bounded by the given limits.
+     */
+    public Server(Lobby lobby, int portNumber, boolean virtualThreads, OutboundLimits limits) throws IOException {
 
         boolean listening = true;
 
         try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
             while (listening) {
-                new ClientThread(serverSocket.accept(), game);
+                new ClientThread(serverSocket.accept(), lobby, virtualThreads, limits);
             }
             serverSocket.close();
             System.out.println("Socket closed.");
@@ -39,23 +56,96 @@ public class Server {
     /**
      * When the server is run first time a new instance of gamelogic is created. The server can use a different map if
      * the user desires.
+     * <p>
+     * Passing -nio runs the non-blocking NioServer instead, with one I/O loop per processor. Passing -virtual keeps the
+     * thread per client model but uses virtual threads. Passing -rooms followed by a room size hosts many games at
+     * once, matching players into rooms of that size. Passing -actor runs each game's commands one at a time on its own
+     * event loop rather than on the client threads. Passing -ai followed by a number gives every game that many AI
+     * opponents, which play on the game's event loop, so -ai implies -actor.
+     * <p>
+     * Passing -chunked loads a binary map (see MapCompiler) a region at a time as players reach it, for maps too big
+     * to hold in memory.
+     * <p>
+     * Passing -highwater and -lowwater followed by a number of bytes sets when a client that is not reading its output
+     * counts as congested and when it has recovered, and -evictms sets how long it may stay congested before it is
+     * disconnected.
      */
     public static void main(String[] args) {
+        String mapFile = null;
+        boolean useNio = false;
+        boolean useVirtualThreads = false;
+        boolean useEventLoops = false;
+        int roomCapacity = 0;
+        int aiPlayers = 0;
+        Map.Storage mapStorage = Map.Storage.AUTO;
+        OutboundLimits defaults = OutboundLimits.DEFAULT;
+        int highWatermark = defaults.getHighWatermark();
+        int lowWatermark = defaults.getLowWatermark();
+        long evictAfterMillis = defaults.getEvictAfterMillis();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-nio")) {
+                useNio = true;
+            } else if (args[i].equals("-virtual")) {
+                useVirtualThreads = true;
+            } else if (args[i].equals("-actor")) {
+                useEventLoops = true;
+            } else if (args[i].equals("-ai") && i + 1 < args.length) {
+                aiPlayers = Integer.parseInt(args[++i]);
+                useEventLoops = true;
+            } else if (args[i].equals("-chunked")) {
+                mapStorage = Map.Storage.CHUNKED;
+            } else if (args[i].equals("-rooms") && i + 1 < args.length) {
+                roomCapacity = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-highwater") && i + 1 < args.length) {
+                highWatermark = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-lowwater") && i + 1 < args.length) {
+                lowWatermark = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-evictms") && i + 1 < args.length) {
+                evictAfterMillis = Long.parseLong(args[++i]);
+            } else {
+                mapFile = args[i];
+            }
+        }
+
+        // Nobody is allowed to queue more than four times the high watermark
+        OutboundLimits limits = new OutboundLimits(highWatermark, lowWatermark, 4 * highWatermark, evictAfterMillis);
+
         try {
-            GameLogic game = null;
-            switch (args.length) {
-                case 0:
-                    // No Command line arguments - default map
-                    System.out.println("Starting Game with Default Map");
-                    game = new GameLogic("res/maps/defaultMap");
-                    break;
-                case 1:
-                    System.out.println("Starting Game with Map " + args[0]);
-                    game = new GameLogic(args[0]);
-                    break;
+            if (mapFile == null) {
+                // No map given - default map
+                System.out.println("Starting Game with Default Map");
+                mapFile = "res/maps/defaultMap";
+            } else {
+                System.out.println("Starting Game with Map " + mapFile);
+            }
+
+            ExecutorService gameExecutor = null;
+            if (useEventLoops) {
+                gameExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            }
+
+            Lobby lobby;
+            if (roomCapacity > 0) {
+                System.out.println("Hosting rooms of " + roomCapacity + " players");
+                lobby = new Lobby(mapFile, mapStorage, roomCapacity, gameExecutor);
+            } else {
+                GameLogic game = new GameLogic(mapFile, "default", mapStorage);
+                if (gameExecutor != null) {
+                    game.setEventLoop(new GameEventLoop(gameExecutor));
+                }
+                lobby = new Lobby(game);
+            }
+            if (aiPlayers > 0) {
+                System.out.println("Adding " + aiPlayers + " AI players to every game");
+                lobby.setAiPlayers(aiPlayers);
             }
             //Port number for server
-            new Server(game, 54879);
+            if (useNio) {
+                new NioServer(lobby, 54879, Runtime.getRuntime().availableProcessors(), limits);
+            } else {
+                new Server(lobby, 54879, useVirtualThreads, limits);
+            }
         } catch (IOException | ParseException e) {
             e.printStackTrace();
         }
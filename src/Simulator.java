@@ -0,0 +1,333 @@
+import java.io.FileNotFoundException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Plays complete games between AiPlayers as fast as the machine allows, with
+ * no Server, sockets or waiting, e.g. to see how a map or a change to the AI
+ * plays out over many games.
+ *
+ * Every game is played on one thread. The AI players' actions are queued and
+ * run one after another, the same as on a GameEventLoop, until somebody wins,
+ * every player has left or the game runs out of actions. The map file is read
+ * once and each game parses its own copy from the lines. Games are shared out
+ * over a ForkJoinPool by a parallel stream.
+ *
+ * The start locations and the players' choices come from generators seeded
+ * from the run's seed and the game's number, so a run gives the same results
+ * every time, however many threads play it.
+ *
+ * Usage: java Simulator [-games N] [-players N] [-seed N] [-threads N]
+ * [-maxactions N] [map]
+ */
+public class Simulator {
+	private final List<String> mapLines;
+	private final int players;
+	private final long seed;
+	private final long maxActions;
+
+	/**
+	 * What happened in one game
+	 */
+	private static final class Result {
+		// The seat of the player who won, or -1 if nobody did
+		private final int winner;
+		private final int turns;
+		private final long actions;
+		private final boolean abandoned;
+
+		private Result(int winner, int turns, long actions, boolean abandoned) {
+			this.winner = winner;
+			this.turns = turns;
+			this.actions = actions;
+			this.abandoned = abandoned;
+		}
+	}
+
+	/**
+	 * The results of many games added together. Each thread of the stream
+	 * fills its own, and they are combined at the end.
+	 */
+	private static final class Summary {
+		private long games = 0;
+		private long noWinner = 0;
+		private long abandoned = 0;
+		private long actions = 0;
+		private long totalTurns = 0;
+		private final long[] winsBySeat;
+		// The number of games that took each number of turns
+		private long[] gamesByTurns = new long[0];
+
+		private Summary(int seats) {
+			this.winsBySeat = new long[seats];
+		}
+
+		private void add(Result result) {
+			this.games++;
+			this.actions += result.actions;
+
+			if (result.abandoned) {
+				// How long it would have taken is unknown, so it is left out of
+				// the game lengths
+				this.abandoned++;
+				return;
+			}
+
+			this.totalTurns += result.turns;
+			if (result.winner == -1) {
+				this.noWinner++;
+			} else {
+				this.winsBySeat[result.winner]++;
+			}
+
+			this.gamesByTurns = atLeast(this.gamesByTurns, result.turns + 1);
+			this.gamesByTurns[result.turns]++;
+		}
+
+		private void combine(Summary other) {
+			this.games += other.games;
+			this.noWinner += other.noWinner;
+			this.abandoned += other.abandoned;
+			this.actions += other.actions;
+			this.totalTurns += other.totalTurns;
+
+			for (int i = 0; i < other.winsBySeat.length; i++) {
+				this.winsBySeat[i] += other.winsBySeat[i];
+			}
+			this.gamesByTurns = atLeast(this.gamesByTurns,
+					other.gamesByTurns.length);
+			for (int i = 0; i < other.gamesByTurns.length; i++) {
+				this.gamesByTurns[i] += other.gamesByTurns[i];
+			}
+		}
+
+		private long wins() {
+			long wins = 0;
+			for (final long count : this.winsBySeat) {
+				wins += count;
+			}
+			return wins;
+		}
+
+		/**
+		 * @return the number of games that were played to the end
+		 */
+		private long finished() {
+			return this.games - this.abandoned;
+		}
+
+		/**
+		 * @return the number of turns the given percentage of finished games
+		 *         took no more than
+		 */
+		private int turnsPercentile(double percentile) {
+			final long rank = Math.max(1,
+					(long) Math.ceil((percentile / 100.0) * finished()));
+			long seen = 0;
+			for (int turns = 0; turns < this.gamesByTurns.length; turns++) {
+				seen += this.gamesByTurns[turns];
+				if (seen >= rank) {
+					return turns;
+				}
+			}
+			return Math.max(0, this.gamesByTurns.length - 1);
+		}
+
+		private static long[] atLeast(long[] counts, int length) {
+			return (counts.length >= length)
+					? counts
+					: Arrays.copyOf(counts, Math.max(length, counts.length * 2));
+		}
+	}
+
+	/**
+	 * @param mapLines
+	 *            the lines of the text map every game is played on
+	 * @param players
+	 *            the number of AI players in each game
+	 * @param seed
+	 *            the seed every game's generators are made from
+	 * @param maxActions
+	 *            how many actions a game may take before it is abandoned, in
+	 *            case the players never finish it
+	 */
+	public Simulator(List<String> mapLines, int players, long seed,
+			long maxActions) {
+		if (players < 1) {
+			throw new IllegalArgumentException(
+					"a game needs at least one player");
+		}
+		this.mapLines = mapLines;
+		this.players = players;
+		this.seed = seed;
+		this.maxActions = maxActions;
+	}
+
+	/**
+	 * Plays one game to the end
+	 *
+	 * @param gameNumber
+	 *            which game of the run this is, which picks its seed
+	 */
+	private Result play(int gameNumber) {
+		final Random random = new Random(
+				this.seed ^ (gameNumber * 0x9E3779B97F4A7C15L));
+
+		final GameLogic game;
+		try {
+			game = new GameLogic(new Map(this.mapLines), "game" + gameNumber,
+					random);
+		} catch (final ParseException e) {
+			// The map was parsed before the run started
+			throw new IllegalStateException("could not parse the map", e);
+		}
+
+		// The players' actions, run in order like a GameEventLoop would
+		final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		final AiPlayer[] seats = new AiPlayer[this.players];
+		for (int i = 0; i < seats.length; i++) {
+			seats[i] = new AiPlayer(game, tasks::add,
+					new Random(random.nextLong()));
+			seats[i].join();
+		}
+
+		long actions = 0;
+		Runnable task;
+		while ((actions < this.maxActions) && ((task = tasks.poll()) != null)) {
+			task.run();
+			actions++;
+		}
+
+		int winner = -1;
+		int turns = 0;
+		for (int i = 0; i < seats.length; i++) {
+			turns += seats[i].getTurns();
+			if (seats[i].hasWon()) {
+				winner = i;
+			}
+		}
+		return new Result(winner, turns, actions, !tasks.isEmpty());
+	}
+
+	/**
+	 * Plays the games and adds up the results
+	 *
+	 * @param games
+	 *            the number of games to play
+	 * @param pool
+	 *            the threads to play them on
+	 */
+	public void run(int games, ForkJoinPool pool)
+			throws InterruptedException, ExecutionException {
+		final String mapName;
+		try {
+			mapName = new Map(this.mapLines).getName();
+		} catch (final ParseException e) {
+			throw new IllegalArgumentException("could not parse the map", e);
+		}
+
+		System.out.println("Playing " + games + " games of " + this.players
+				+ " players on " + mapName + " with seed " + this.seed
+				+ " on " + pool.getParallelism() + " threads");
+
+		final long start = System.nanoTime();
+		final Summary summary = pool.submit(() -> IntStream.range(0, games)
+				.parallel().mapToObj(this::play)
+				.collect(() -> new Summary(this.players), Summary::add,
+						Summary::combine))
+				.get();
+		final double seconds = (System.nanoTime() - start) / 1e9;
+
+		report(summary, seconds);
+	}
+
+	private void report(Summary summary, double seconds) {
+		System.out.println();
+		System.out.println("Games:       " + summary.games + " in "
+				+ String.format("%.1f", seconds) + "s, "
+				+ String.format("%.1f", summary.games / seconds) + " games/s, "
+				+ String.format("%.0f", summary.actions / seconds)
+				+ " actions/s");
+		System.out.println("Won:         "
+				+ String.format("%.2f", percent(summary.wins(), summary.games))
+				+ "%, nobody could win "
+				+ String.format("%.2f",
+						percent(summary.noWinner, summary.games))
+				+ "%, abandoned "
+				+ String.format("%.2f",
+						percent(summary.abandoned, summary.games))
+				+ "%");
+
+		final StringBuilder seats = new StringBuilder("Wins by seat:");
+		for (int i = 0; i < summary.winsBySeat.length; i++) {
+			seats.append(" ").append(i).append("=").append(String.format(
+					"%.1f%%", percent(summary.winsBySeat[i], summary.games)));
+		}
+		System.out.println(seats);
+
+		System.out.println("Turns:       mean "
+				+ String.format("%.1f",
+						(double) summary.totalTurns
+								/ Math.max(1, summary.finished()))
+				+ ", p50 " + summary.turnsPercentile(50) + ", p90 "
+				+ summary.turnsPercentile(90) + ", p99 "
+				+ summary.turnsPercentile(99) + ", max "
+				+ summary.turnsPercentile(100));
+	}
+
+	private static double percent(long part, long whole) {
+		return (whole == 0) ? 0 : (100.0 * part) / whole;
+	}
+
+	public static void main(String[] args) throws InterruptedException,
+			ExecutionException {
+		String mapFile = "res/maps/defaultMap";
+		int games = 10000;
+		int players = 4;
+		long seed = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long maxActions = 100000;
+
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("-")) {
+				mapFile = args[i];
+			} else if (i + 1 >= args.length) {
+				throw new IllegalArgumentException(args[i] + " needs a value");
+			} else if (args[i].equals("-games")) {
+				games = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-players")) {
+				players = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-seed")) {
+				seed = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-maxactions")) {
+				maxActions = Long.parseLong(args[++i]);
+			} else {
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		final List<String> mapLines;
+		try {
+			mapLines = Map.readFile(mapFile);
+		} catch (final FileNotFoundException e) {
+			System.err.println("Could not find the map " + mapFile);
+			System.exit(1);
+			return;
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			new Simulator(mapLines, players, seed, maxActions).run(games, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * An OccupancyGrid that only records the cells players are standing on, for
+ * maps such as chunked maps that are too big to give every cell a slot. It
+ * takes memory for the players rather than for the map, and reads nothing
+ * from the map until somebody needs a start location.
+ *
+ * There is no index of free cells, as building one would read the whole map.
+ * A start location is found by trying random cells until one is walkable and
+ * free, which on a big map is almost always the first or second try.
+ */
+public class SparseOccupancyGrid extends OccupancyGrid {
+	// How many random cells to try for a start location before giving up
+	private static final int START_ATTEMPTS = 10000;
+
+	private final Map map;
+	private final int width;
+	private final int height;
+
+	// The player on each occupied cell, by the cell's index in row-major order
+	private final HashMap<Long, Integer> players = new HashMap<Long, Integer>();
+
+	/**
+	 * Creates an empty grid for the map
+	 *
+	 * @param map
+	 *            the map the players are on
+	 */
+	public SparseOccupancyGrid(Map map) {
+		this.map = map;
+		this.width = map.getMapWidth();
+		this.height = map.getMapHeight();
+	}
+
+	@Override
+	public int playerAt(int col, int row) {
+		if ((col < 0) || (col >= this.width) || (row < 0)
+				|| (row >= this.height)) {
+			return EMPTY;
+		}
+		final Integer playerID = this.players.get(indexOf(col, row));
+		return (playerID == null) ? EMPTY : playerID;
+	}
+
+	@Override
+	public void place(int playerID, Location location) {
+		if (this.map.insideMap(location)) {
+			this.players.put(indexOf(location.getCol(), location.getRow()),
+					playerID);
+		}
+	}
+
+	@Override
+	public void vacate(int playerID, Location location) {
+		if (this.map.insideMap(location)) {
+			this.players.remove(indexOf(location.getCol(), location.getRow()),
+					playerID);
+		}
+	}
+
+	@Override
+	public Location randomFreeCell(Random random) {
+		for (int attempt = 0; attempt < START_ATTEMPTS; attempt++) {
+			final int col = random.nextInt(this.width);
+			final int row = random.nextInt(this.height);
+			if (this.map.isWalkable(col, row)
+					&& !this.players.containsKey(indexOf(col, row))) {
+				return new Location(col, row);
+			}
+		}
+		return null;
+	}
+
+	private Long indexOf(int col, int row) {
+		return ((long) row * this.width) + col;
+	}
+}
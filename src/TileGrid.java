@@ -0,0 +1,46 @@
+/**
+ * Map storage holding a Tile object for every cell, stored in row-major order,
+ * i.e. [row][col]. This is how maps have always been stored.
+ */
+public class TileGrid implements WritableMapCells {
+	private final Tile tiles[][];
+
+	public TileGrid(int width, int height) {
+		this.tiles = new Tile[height][width];
+	}
+
+	@Override
+	public int getWidth() {
+		return this.tiles[0].length;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.tiles.length;
+	}
+
+	@Override
+	public void setCell(int col, int row, char character) {
+		this.tiles[row][col] = Tile.fromChar(character);
+	}
+
+	@Override
+	public Tile getTile(int col, int row) {
+		return this.tiles[row][col];
+	}
+
+	@Override
+	public void removeItem(int col, int row) {
+		this.tiles[row][col].removeItem();
+	}
+
+	@Override
+	public char toChar(int col, int row) {
+		return this.tiles[row][col].toChar();
+	}
+
+	@Override
+	public boolean isWalkable(int col, int row) {
+		return this.tiles[row][col].isWalkable();
+	}
+}
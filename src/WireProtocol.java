@@ -0,0 +1,251 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary framing that a client may switch to instead of the text protocol.
+ *
+ * The text protocol is always used first. A client switches by sending the line
+ * "PROTOCOL BINARY", and the server answers with the same line. Everything the
+ * client sends after its line, and everything the server sends after its
+ * answer, is a frame. A frame is a two byte big-endian length
+ * followed by that many bytes: a one byte opcode and its payload.
+ *
+ * The commonest messages have their own opcodes. A LOOKREPLY is sent as the
+ * side of the grid in one byte then one byte per cell, row by row, without any
+ * line separators. Everything else is carried as a TEXT frame holding the same
+ * line the text protocol would have sent, so nothing is lost by switching.
+ */
+public final class WireProtocol {
+	// The line a client sends, and gets back, to switch to frames
+	public static final String SWITCH_COMMAND = "PROTOCOL BINARY";
+
+	// The largest frame body, as the length is two bytes
+	public static final int MAX_FRAME_LENGTH = 0xFFFF;
+
+	// Client to server. MOVE and ATTACK carry the direction's character.
+	public static final byte MOVE = 0x01;
+	public static final byte LOOK = 0x02;
+	public static final byte PICKUP = 0x03;
+	public static final byte ATTACK = 0x04;
+	public static final byte ENDTURN = 0x05;
+
+	// Server to client. FAIL carries the reason as UTF-8.
+	public static final byte SUCCESS = (byte) 0x81;
+	public static final byte FAIL = (byte) 0x82;
+	public static final byte LOOKREPLY = (byte) 0x83;
+	public static final byte CHANGE = (byte) 0x84;
+
+	// Either way, a line of the text protocol as UTF-8
+	public static final byte TEXT = 0x7F;
+
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private WireProtocol() {
+	}
+
+	/**
+	 * Encodes a command from a client, e.g. "MOVE N", as a frame
+	 *
+	 * @param command
+	 *            a line of the text protocol
+	 * @return the whole frame, including its length
+	 * @throws IllegalArgumentException
+	 *             if the command is too long for a frame
+	 */
+	public static byte[] encodeCommand(String command) {
+		switch (command) {
+			case "LOOK" :
+				return frame(LOOK);
+			case "PICKUP" :
+				return frame(PICKUP);
+			case "ENDTURN" :
+				return frame(ENDTURN);
+			default :
+				break;
+		}
+
+		if ((command.length() == 6) && command.startsWith("MOVE ")) {
+			return frame(MOVE, (byte) command.charAt(5));
+		}
+		if ((command.length() == 8) && command.startsWith("ATTACK ")) {
+			return frame(ATTACK, (byte) command.charAt(7));
+		}
+
+		return textFrame(TEXT, command);
+	}
+
+	/**
+	 * Encodes a message from the server, as built for the text protocol, as a
+	 * frame
+	 *
+	 * @param message
+	 *            the message, which for a LOOKREPLY spans several lines
+	 * @return the whole frame, including its length
+	 * @throws IllegalArgumentException
+	 *             if the message is too long for a frame
+	 */
+	public static byte[] encodeReply(String message) {
+		switch (message) {
+			case "SUCCESS" :
+				return frame(SUCCESS);
+			case "CHANGE" :
+				return frame(CHANGE);
+			default :
+				break;
+		}
+
+		if (message.startsWith("FAIL ")) {
+			return textFrame(FAIL, message.substring(5));
+		}
+		if (message.startsWith("LOOKREPLY" + LINE_SEPARATOR)) {
+			return lookFrame(message, 9 + LINE_SEPARATOR.length());
+		}
+
+		return textFrame(TEXT, message);
+	}
+
+	/**
+	 * Starts a LOOKREPLY frame, so that the server can render the grid
+	 * straight into it rather than packing a LOOKREPLY message
+	 *
+	 * @param side
+	 *            the number of cells on each side of the grid
+	 * @return the whole frame, positioned after its header for the caller to
+	 *         put the side * side cells, row by row
+	 */
+	public static ByteBuffer startLookFrame(int side) {
+		final ByteBuffer frame = ByteBuffer.allocate(4 + (side * side));
+
+		frame.putShort((short) (frame.capacity() - 2));
+		frame.put(LOOKREPLY);
+		frame.put((byte) side);
+		return frame;
+	}
+
+	/**
+	 * Reads the body of the next frame, i.e. its opcode and payload
+	 *
+	 * @throws EOFException
+	 *             if the stream ends, even part way through a frame
+	 */
+	public static byte[] readFrame(DataInputStream in) throws IOException {
+		final byte[] body = new byte[in.readUnsignedShort()];
+		in.readFully(body);
+		return body;
+	}
+
+	/**
+	 * Reads a line of the text protocol a byte at a time, so that nothing
+	 * after it is read ahead and the stream can switch to frames. The line
+	 * separator is not included.
+	 *
+	 * @return the line, or null if the stream has ended
+	 */
+	public static String readLine(DataInputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int b;
+
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				return (line.size() == 0) ? null : line.toString();
+			}
+			line.write(b);
+		}
+
+		final byte[] bytes = line.toByteArray();
+		int length = bytes.length;
+		if ((length > 0) && (bytes[length - 1] == '\r')) {
+			length--;
+		}
+		return new String(bytes, 0, length, Charset.defaultCharset());
+	}
+
+	/**
+	 * @return the payload of a frame body as text
+	 */
+	public static String payloadText(byte[] body) {
+		return new String(body, 1, body.length - 1, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Unpacks the grid of a LOOKREPLY frame body
+	 *
+	 * @return the cells, by row then column
+	 */
+	public static char[][] payloadGrid(byte[] body) {
+		final int side = body[1] & 0xFF;
+		final char[][] grid = new char[side][side];
+
+		for (int row = 0; row < side; row++) {
+			for (int col = 0; col < side; col++) {
+				grid[row][col] = (char) (body[2 + (row * side) + col] & 0xFF);
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * Packs the grid of a LOOKREPLY, dropping the line separators
+	 *
+	 * @param message
+	 *            the whole LOOKREPLY message
+	 * @param start
+	 *            where the grid starts in the message
+	 */
+	private static byte[] lookFrame(String message, int start) {
+		final int rowLength = message.indexOf(LINE_SEPARATOR, start) - start;
+		final byte[] frame = new byte[4 + (rowLength * rowLength)];
+		int index = start;
+		int out = 4;
+
+		for (int row = 0; row < rowLength; row++) {
+			for (int col = 0; col < rowLength; col++) {
+				frame[out++] = (byte) message.charAt(index++);
+			}
+			index += LINE_SEPARATOR.length();
+		}
+
+		writeLength(frame);
+		frame[2] = LOOKREPLY;
+		frame[3] = (byte) rowLength;
+		return frame;
+	}
+
+	/**
+	 * Frames text after its opcode. Text too long for one frame is refused
+	 * rather than cut short, which could also split a UTF-8 character.
+	 */
+	private static byte[] textFrame(byte opcode, String text) {
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		final int length = bytes.length;
+		if (length > MAX_FRAME_LENGTH - 1) {
+			throw new IllegalArgumentException("message of " + length
+					+ " bytes is too long for a frame");
+		}
+		final byte[] frame = new byte[3 + length];
+
+		System.arraycopy(bytes, 0, frame, 3, length);
+		writeLength(frame);
+		frame[2] = opcode;
+		return frame;
+	}
+
+	private static byte[] frame(byte... body) {
+		final byte[] frame = new byte[2 + body.length];
+
+		System.arraycopy(body, 0, frame, 2, body.length);
+		writeLength(frame);
+		return frame;
+	}
+
+	private static void writeLength(byte[] frame) {
+		final int length = frame.length - 2;
+		frame[0] = (byte) (length >> 8);
+		frame[1] = (byte) length;
+	}
+}
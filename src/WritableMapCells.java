@@ -0,0 +1,15 @@
+/**
+ * Map storage that can be filled in cell by cell, as a text map is parsed.
+ * ChunkedCells is not one, as its cells only ever come from the binary map
+ * file.
+ */
+public interface WritableMapCells extends MapCells {
+
+	/**
+	 * Stores a cell from its character in the map file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the character is not a tile or an item
+	 */
+	public void setCell(int col, int row, char character);
+}